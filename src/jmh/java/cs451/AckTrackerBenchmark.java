@@ -0,0 +1,56 @@
+package cs451;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One round of ACK bookkeeping: reset, a response from every process until a quorum, and the
+ * quorum checks the shard runs after each of them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AckTrackerBenchmark {
+    private static final int SLOTS = 1024;
+
+    @Param({"3", "32", "128"})
+    public int processes;
+
+    private AckTracker tracker;
+    private int slot;
+
+    @Setup
+    public void setUp() {
+        tracker = new AckTracker(processes, SLOTS);
+    }
+
+    @Benchmark
+    public int roundToQuorum() {
+        slot = (slot + 1) & (SLOTS - 1);
+        tracker.reset(slot);
+        int responses = 0;
+        for (int sender = 1; sender <= processes && !tracker.canDecide(slot); sender++) {
+            if ((sender & 3) == 0) {
+                tracker.addNoAck(slot, sender);
+            } else {
+                tracker.addAck(slot, sender);
+            }
+            responses++;
+            if (tracker.canPropose(slot)) {
+                responses++;
+            }
+        }
+        return responses;
+    }
+
+    @Benchmark
+    public boolean duplicateAck() {
+        slot = (slot + 1) & (SLOTS - 1);
+        tracker.addAck(slot, 1 + (slot % processes)); // Mostly inactive or already answered slots
+        return tracker.canDecide(slot);
+    }
+}
@@ -0,0 +1,20 @@
+package cs451;
+
+import java.util.Random;
+
+// Deterministic inputs shared by the benchmarks
+final class BenchmarkData {
+    private BenchmarkData() {
+    }
+
+    /**
+     * Returns a set of {@code size} distinct values drawn from [1, distinctValues].
+     */
+    static LatticeSet randomSet(ValueDictionary dictionary, int size, int distinctValues, Random random) {
+        LatticeSet set = new LatticeSet(dictionary);
+        while (set.size() < Math.min(size, distinctValues)) {
+            set.add(1 + random.nextInt(distinctValues));
+        }
+        return set;
+    }
+}
@@ -0,0 +1,66 @@
+package cs451;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wire encoding and decoding of proposals, both the allocating {@link Message#toBytes()} /
+ * {@link Message#fromBytes(byte[])} pair and the buffer-reusing batch path.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+    @Param({"4", "64", "256"})
+    public int setSize;
+
+    @Param({"256", "65536"})
+    public int distinctValues;
+
+    private Message proposal;
+    private byte[] encoded;
+    private ByteBuffer buffer;
+    private final List<Message> decoded = new ArrayList<>();
+
+    @Setup
+    public void setUp() throws IOException {
+        ValueDictionary dictionary = new ValueDictionary(distinctValues);
+        proposal = Message.createProposal(1, 123_456, BenchmarkData.randomSet(dictionary, setSize, distinctValues, new Random(42)), 3);
+        encoded = proposal.toBytes();
+        buffer = ByteBuffer.allocateDirect(Transport.MAX_PACKET_SIZE);
+    }
+
+    @Benchmark
+    public byte[] toBytes() throws IOException {
+        return proposal.toBytes();
+    }
+
+    @Benchmark
+    public Message fromBytes() throws IOException {
+        return Message.fromBytes(encoded);
+    }
+
+    @Benchmark
+    public int encodeRecord() {
+        buffer.clear();
+        MessageCodec.encode(proposal, buffer);
+        return buffer.position();
+    }
+
+    @Benchmark
+    public void decodeAll(Blackhole blackhole) throws IOException {
+        decoded.clear();
+        MessageCodec.decodeAll(ByteBuffer.wrap(encoded), decoded);
+        blackhole.consume(decoded.get(0));
+    }
+}
@@ -0,0 +1,61 @@
+package cs451;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The acceptor step of {@code Shard.handleProposition}: decode the proposed set, test whether it
+ * contains everything accepted so far, then join it in.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LatticeMergeBenchmark {
+    @Param({"4", "64", "256"})
+    public int setSize;
+
+    @Param({"256", "65536"})
+    public int distinctValues;
+
+    private LatticeSet accepted;
+    private LatticeSet proposed;
+    private LatticeSet scratch;
+    private LatticeSet received;
+    private Message proposal;
+
+    @Setup
+    public void setUp() {
+        ValueDictionary dictionary = new ValueDictionary(distinctValues);
+        Random random = new Random(42);
+        accepted = BenchmarkData.randomSet(dictionary, setSize, distinctValues, random);
+        proposed = BenchmarkData.randomSet(dictionary, setSize, distinctValues, random);
+        proposed.join(accepted); // Extends what was accepted, the common round that gets an ACK
+        scratch = new LatticeSet(dictionary);
+        received = new LatticeSet(dictionary);
+        proposal = Message.createProposal(2, 7, proposed, 1);
+    }
+
+    @Benchmark
+    public boolean containsAllAndJoin() {
+        scratch.clear();
+        scratch.join(accepted);
+        boolean ack = proposed.containsAll(scratch);
+        scratch.join(proposed);
+        return ack;
+    }
+
+    @Benchmark
+    public boolean decodeAndMerge() {
+        proposal.readProposalSet(received);
+        scratch.clear();
+        scratch.join(accepted);
+        boolean ack = received.containsAll(scratch);
+        scratch.join(received);
+        return ack;
+    }
+}
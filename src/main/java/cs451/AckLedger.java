@@ -0,0 +1,156 @@
+package cs451;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * ACKs owed to one peer, sent as cumulative {@link MessageCodec#CUMULATIVE_ACK} records.
+ *
+ * Every entry rides along on up to {@code repeatCount} datagrams to the peer, so a single lost
+ * datagram does not lose the acknowledgement. Entries are kept sorted by proposalId, one per
+ * instance: acknowledging a newer round replaces the older one. Not thread-safe; the
+ * {@link DatagramBatcher} guards it with the destination's batch monitor.
+ */
+public class AckLedger {
+    private final int repeatCount;
+    private int[] ids = new int[16];
+    private int[] nbs = new int[16];
+    private int[] repeats = new int[16]; // Datagrams the entry still has to ride on
+    private int size;
+    private int fresh; // Entries never sent yet
+    private long firstFreshNanos;
+
+    public AckLedger(int repeatCount) {
+        this.repeatCount = Math.max(1, repeatCount);
+    }
+
+    public void add(int proposalId, int proposalNb) {
+        int i = Arrays.binarySearch(ids, 0, size, proposalId);
+        if (i >= 0) {
+            if (proposalNb < nbs[i]) {
+                return; // A newer round is already acknowledged
+            }
+            if (repeats[i] != repeatCount) {
+                markFresh();
+            }
+            nbs[i] = proposalNb;
+            repeats[i] = repeatCount;
+            return;
+        }
+        i = -i - 1;
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, size * 2);
+            nbs = Arrays.copyOf(nbs, size * 2);
+            repeats = Arrays.copyOf(repeats, size * 2);
+        }
+        System.arraycopy(ids, i, ids, i + 1, size - i);
+        System.arraycopy(nbs, i, nbs, i + 1, size - i);
+        System.arraycopy(repeats, i, repeats, i + 1, size - i);
+        ids[i] = proposalId;
+        nbs[i] = proposalNb;
+        repeats[i] = repeatCount;
+        size++;
+        markFresh();
+    }
+
+    private void markFresh() {
+        if (fresh++ == 0) {
+            firstFreshNanos = System.nanoTime();
+        }
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int freshCount() {
+        return fresh;
+    }
+
+    public long getFirstFreshNanos() {
+        return firstFreshNanos;
+    }
+
+    /**
+     * Appends a cumulative ACK record with as many entries as fit below {@code limit}: every entry
+     * if possible, otherwise fresh entries only. Returns false if fresh entries are pending but
+     * not even one fits, in which case the caller should retry on an empty datagram.
+     */
+    public boolean encode(ByteBuffer out, int senderId, int limit) {
+        if (size == 0) {
+            return true;
+        }
+        int header = 1 + MessageCodec.varIntSize(senderId);
+        int budget = limit - out.position() - header;
+
+        boolean all = MessageCodec.varIntSize(size) + entriesSize() <= budget;
+        int end = size; // Entries considered are [0, end)
+        int count = size;
+        if (!all) {
+            // Greedily take fresh entries in id order while they fit; 3 bytes cover any realistic count
+            count = 0;
+            int bytes = 3;
+            int previous = 0;
+            for (end = 0; end < size; end++) {
+                if (repeats[end] != repeatCount) {
+                    continue;
+                }
+                int entry = MessageCodec.varIntSize(count == 0 ? ids[end] : ids[end] - previous) + MessageCodec.varIntSize(nbs[end]);
+                if (bytes + entry > budget) {
+                    break;
+                }
+                bytes += entry;
+                previous = ids[end];
+                count++;
+            }
+            if (count == 0) {
+                return fresh == 0;
+            }
+        }
+
+        out.put(MessageCodec.CUMULATIVE_ACK);
+        MessageCodec.putVarInt(out, senderId);
+        MessageCodec.putVarInt(out, count);
+        int previous = 0;
+        int written = 0;
+        for (int i = 0; i < end; i++) {
+            if (!all && repeats[i] != repeatCount) {
+                continue;
+            }
+            MessageCodec.putVarInt(out, written == 0 ? ids[i] : ids[i] - previous);
+            MessageCodec.putVarInt(out, nbs[i]);
+            previous = ids[i];
+            written++;
+            if (repeats[i] == repeatCount) {
+                fresh--;
+            }
+            repeats[i]--;
+        }
+        if (fresh > 0) {
+            firstFreshNanos = System.nanoTime();
+        }
+        removeExhausted();
+        return true;
+    }
+
+    private int entriesSize() {
+        int bytes = 0;
+        for (int i = 0; i < size; i++) {
+            bytes += MessageCodec.varIntSize(i == 0 ? ids[0] : ids[i] - ids[i - 1]) + MessageCodec.varIntSize(nbs[i]);
+        }
+        return bytes;
+    }
+
+    private void removeExhausted() {
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (repeats[i] > 0) {
+                ids[kept] = ids[i];
+                nbs[kept] = nbs[i];
+                repeats[kept] = repeats[i];
+                kept++;
+            }
+        }
+        size = kept;
+    }
+}
@@ -1,61 +1,86 @@
 package cs451;
 
-import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 
+/**
+ * Tracks ACKs and NACKs of the current round of each instance in dense, atomically updated bitmasks.
+ *
+ * Instances are addressed by a slot in [0, capacity) chosen by the caller. Each slot owns
+ * {@code ceil(totalProcesses / 32)} mask words; a word holds the ACK bits of 32 processes in its
+ * low half and their NACK bits in its high half, so with up to 32 processes a whole round is a
+ * single word. A second per-slot word packs the ACK and NACK counts with an active flag, which
+ * makes the quorum checks a single read. Nothing is allocated after construction.
+ */
 public class AckTracker {
-    private final Map<Integer, Set<Integer>> ackMap; // ProposalId -> Set of processIds that sent ACK
-    private final Map<Integer, Set<Integer>> nackMap; // ProposalId -> Set of processIds that sent NACK
-    private final Map<Integer, Set<Integer>> pendingHostsMap; // ProposalId -> Set of pending processIds
+    private static final VarHandle LONGS = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle INTS = MethodHandles.arrayElementVarHandle(int[].class);
+
+    private static final int ACTIVE = 1 << 31; // Round in progress, responses are tracked
+    private static final int ACK_ONE = 1; // ACK count in bits 0..14
+    private static final int NACK_ONE = 1 << 15; // NACK count in bits 15..29
+    private static final int COUNT_MASK = (1 << 15) - 1;
+
+    private final long[] masks; // Slot * wordsPerSlot + (processId - 1) / 32
+    private final int[] counts; // Per slot: ACTIVE | nackCount << 15 | ackCount
+    private final int wordsPerSlot;
     private final int totalProcesses;
 
-    public AckTracker(int totalProcesses) {
+    public AckTracker(int totalProcesses, int capacity) {
         this.totalProcesses = totalProcesses;
-        this.ackMap = new ConcurrentHashMap<>();
-        this.nackMap = new ConcurrentHashMap<>();
-        this.pendingHostsMap = new ConcurrentHashMap<>();
+        this.wordsPerSlot = (totalProcesses + 31) / 32;
+        this.masks = new long[capacity * wordsPerSlot];
+        this.counts = new int[capacity];
     }
 
     /**
-     * Initializes tracking for a new proposal.
+     * Initializes tracking for a new round of the instance.
      */
-    public void reset(int proposalId) {
-        ackMap.put(proposalId, ConcurrentHashMap.newKeySet());
-        nackMap.put(proposalId, ConcurrentHashMap.newKeySet());
-        pendingHostsMap.put(proposalId, initPendingHosts());
-    }
-
-    private Set<Integer> initPendingHosts() {
-        Set<Integer> pendingHosts = ConcurrentHashMap.newKeySet();
-        for (int i = 1; i <= totalProcesses; i++) {
-            pendingHosts.add(i);
+    public void reset(int slot) {
+        int base = slot * wordsPerSlot;
+        for (int i = 0; i < wordsPerSlot; i++) {
+            LONGS.setRelease(masks, base + i, 0L);
         }
-        return pendingHosts;
+        INTS.setVolatile(counts, slot, ACTIVE);
     }
 
     /**
-     * Adds an ACK for a proposal from a specific process.
+     * Adds an ACK for the instance from a specific process.
      */
-    public void addAck(int proposalId, int senderId) {
-        ackMap.computeIfAbsent(proposalId, k -> ConcurrentHashMap.newKeySet()).add(senderId);
-        pendingHostsMap.computeIfAbsent(proposalId, k -> initPendingHosts()).remove(senderId);
+    public void addAck(int slot, int senderId) {
+        record(slot, senderId, 0, ACK_ONE);
     }
 
     /**
-     * Adds a NACK for a proposal from a specific process.
+     * Adds a NACK for the instance from a specific process.
      */
-    public void addNoAck(int proposalId, int senderId) {
-        nackMap.computeIfAbsent(proposalId, k -> ConcurrentHashMap.newKeySet()).add(senderId);
-        pendingHostsMap.computeIfAbsent(proposalId, k -> initPendingHosts()).remove(senderId);
+    public void addNoAck(int slot, int senderId) {
+        record(slot, senderId, 32, NACK_ONE);
+    }
+
+    // Sets the sender's bit and bumps the counter only if the process had not answered this round
+    private void record(int slot, int senderId, int shift, int one) {
+        if (senderId < 1 || senderId > totalProcesses || ((int) INTS.getVolatile(counts, slot) & ACTIVE) == 0) {
+            return;
+        }
+        int bit = senderId - 1;
+        int word = slot * wordsPerSlot + (bit >>> 5);
+        long answered = 0x1_0000_0001L << (bit & 31);
+        long flag = 1L << ((bit & 31) + shift);
+        long previous = (long) LONGS.getAndBitwiseOr(masks, word, flag);
+        if ((previous & answered) == 0) {
+            INTS.getAndAdd(counts, slot, one);
+        }
     }
 
     /**
-     * Checks if the proposal can be decided based on ACKs and NACKs.
+     * Checks if the instance can be decided based on ACKs.
      * This happens when we have `f+1` ACKs, where `f` is the maximum tolerated failures.
      */
-    public boolean canDecide(int proposalId) {
+    public boolean canDecide(int slot) {
         int quorumSize = (totalProcesses / 2) + 1; // Quorum size (f+1)
-        return ackMap.getOrDefault(proposalId, Collections.emptySet()).size() >= quorumSize;
+        int count = (int) INTS.getVolatile(counts, slot);
+        return (count & COUNT_MASK) >= quorumSize;
     }
 
     /**
@@ -64,27 +89,70 @@ public class AckTracker {
      * - Number of NACKs + ACKs >= f+1, where f = totalProcesses / 2
      * - The proposal is still active and undecided.
      */
-    public boolean canPropose(int proposalId) {
+    public boolean canPropose(int slot) {
         int f = totalProcesses / 2; // Maximum tolerated failures
-        int ackCount = ackMap.getOrDefault(proposalId, Collections.emptySet()).size();
-        int nackCount = nackMap.getOrDefault(proposalId, Collections.emptySet()).size();
+        int count = (int) INTS.getVolatile(counts, slot);
+        int ackCount = count & COUNT_MASK;
+        int nackCount = (count >>> 15) & COUNT_MASK;
+        return (ackCount + nackCount >= f + 1) && (count & ACTIVE) != 0;
+    }
+
+    /**
+     * Returns the smallest process id >= {@code fromId} that has not yet responded in the current
+     * round, or -1 if there is none or the instance is not active.
+     */
+    public int nextPendingHost(int slot, int fromId) {
+        if (((int) INTS.getVolatile(counts, slot) & ACTIVE) == 0) {
+            return -1;
+        }
+        int base = slot * wordsPerSlot;
+        for (int bit = fromId - 1; bit < totalProcesses; ) {
+            long word = (long) LONGS.getAcquire(masks, base + (bit >>> 5));
+            int answered = (int) word | (int) (word >>> 32);
+            int pending = ~answered & (-1 << (bit & 31));
+            int end = Math.min(32, totalProcesses - (bit & ~31));
+            if (end < 32) {
+                pending &= (1 << end) - 1;
+            }
+            if (pending != 0) {
+                return (bit & ~31) + Integer.numberOfTrailingZeros(pending) + 1;
+            }
+            bit = (bit & ~31) + 32;
+        }
+        return -1;
+    }
 
-        return (ackCount + nackCount >= f + 1) && pendingHostsMap.containsKey(proposalId);
+    /**
+     * Returns true if the instance is active and the process already responded in the current round.
+     */
+    public boolean hasAnswered(int slot, int processId) {
+        if (processId < 1 || processId > totalProcesses || ((int) INTS.getVolatile(counts, slot) & ACTIVE) == 0) {
+            return false;
+        }
+        int bit = processId - 1;
+        long word = (long) LONGS.getAcquire(masks, slot * wordsPerSlot + (bit >>> 5));
+        return (word & (0x1_0000_0001L << (bit & 31))) != 0;
+    }
+
+    /**
+     * Returns true if the instance is in an active round.
+     */
+    public boolean isActive(int slot) {
+        return ((int) INTS.getVolatile(counts, slot) & ACTIVE) != 0;
     }
 
     /**
-     * Returns the set of hosts that have not yet responded (still pending).
+     * Returns true if some process has not yet responded in the current round of an active instance.
      */
-    public Set<Integer> getPendingHostIds(int proposalId) {
-        return new HashSet<>(pendingHostsMap.getOrDefault(proposalId, Collections.emptySet()));
+    public boolean hasPendingHosts(int slot) {
+        int count = (int) INTS.getVolatile(counts, slot);
+        return (count & ACTIVE) != 0 && (count & COUNT_MASK) + ((count >>> 15) & COUNT_MASK) < totalProcesses;
     }
 
     /**
-     * Removes tracking data for a decided proposal.
+     * Stops tracking a decided instance.
      */
-    public void removeMessage(int proposalId) {
-        ackMap.remove(proposalId);
-        nackMap.remove(proposalId);
-        pendingHostsMap.remove(proposalId);
+    public void removeMessage(int slot) {
+        INTS.setVolatile(counts, slot, 0);
     }
-}
\ No newline at end of file
+}
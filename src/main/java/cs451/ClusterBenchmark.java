@@ -0,0 +1,358 @@
+package cs451;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * End-to-end benchmark: generates lattice-agreement configs, runs a cluster of {@link Process}es
+ * in this JVM until every instance is decided, checks the decisions, and reports throughput,
+ * latency and traffic.
+ *
+ * Usage: {@code java -cp bin/da_proc.jar cs451.ClusterBenchmark OUTPUT_DIR PROCESSES PROPOSALS MAX_SET_SIZE DISTINCT_VALUES}.
+ * The configs, outputs and {@code report.json} are written to OUTPUT_DIR. Processes talk over UDP
+ * on loopback, or over the simulated network with -Dcs451.bench.network=sim (see
+ * {@link Constants}). Every other -Dcs451.* property applies as in a real run, so two reports that
+ * differ in one property measure that property. Exits with status 1 if a decision is invalid or
+ * the run timed out.
+ *
+ * A decision is valid if it contains the process's own proposal, holds only values proposed for
+ * that instance, and is comparable with every other process's decision for it. Latency is measured
+ * by each process from its first proposal of an instance to its decision, and the percentiles are
+ * over all processes.
+ */
+public class ClusterBenchmark {
+    private static final int MAX_REPORTED_ERRORS = 10;
+
+    private final Path dir;
+    private final int processes;
+    private final int proposals;
+    private final int maxSetSize;
+    private final int distinctValues;
+    private final int[][][] proposed; // Sorted proposal of each process (index id - 1) for each instance
+    private final List<String> errors = new ArrayList<>(); // The first MAX_REPORTED_ERRORS invalid decisions
+    private long errorCount;
+
+    public ClusterBenchmark(Path dir, int processes, int proposals, int maxSetSize, int distinctValues) {
+        this.dir = dir;
+        this.processes = processes;
+        this.proposals = proposals;
+        this.maxSetSize = Math.min(maxSetSize, distinctValues);
+        this.distinctValues = distinctValues;
+        this.proposed = new int[processes][proposals][];
+    }
+
+    /**
+     * Writes one config per process; proposal sets have 1 to MAX_SET_SIZE values drawn from 1..DISTINCT_VALUES.
+     */
+    public void generate(long seed) throws IOException {
+        Files.createDirectories(dir);
+        Random random = new Random(seed);
+        int[] pool = new int[distinctValues];
+        for (int i = 0; i < distinctValues; i++) {
+            pool[i] = i + 1;
+        }
+        for (int p = 0; p < processes; p++) {
+            try (BufferedWriter out = Files.newBufferedWriter(configFile(p + 1))) {
+                out.write(proposals + " " + maxSetSize + " " + distinctValues + "\n");
+                for (int k = 0; k < proposals; k++) {
+                    int size = 1 + random.nextInt(maxSetSize);
+                    for (int j = 0; j < size; j++) { // Partial Fisher-Yates shuffle, the first size values are the sample
+                        int swap = j + random.nextInt(distinctValues - j);
+                        int value = pool[swap];
+                        pool[swap] = pool[j];
+                        pool[j] = value;
+                        if (j > 0) {
+                            out.write(' ');
+                        }
+                        out.write(Integer.toString(value));
+                    }
+                    out.write('\n');
+                    int[] values = Arrays.copyOf(pool, size);
+                    Arrays.sort(values);
+                    proposed[p][k] = values;
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the cluster until every process decided every instance, a process fails or the timeout
+     * expires; returns the elapsed nanoseconds, or -1 if not done, and adds the processes' metrics to
+     * {@code report}.
+     */
+    public long run(boolean simulated, int basePort, long timeoutSeconds, Report report) throws IOException, InterruptedException {
+        List<Host> hosts = new ArrayList<>();
+        for (int i = 1; i <= processes; i++) {
+            hosts.add(new Host(i, "127.0.0.1", basePort + i));
+        }
+        SimulatedNetwork network = simulated
+                ? new SimulatedNetwork(Constants.SIM_SEED, LinkProfile.fromProperties(), Constants.SIM_RECEIVE_BUFFER_BYTES)
+                : null;
+        List<Process> cluster = new ArrayList<>();
+        for (Host host : hosts) {
+            ConfigReader config = new ConfigReader(configFile(host.getId()).toString());
+            ValueDictionary dictionary = new ValueDictionary(config.getMaxDistinctElements(), config.getMaxDictionarySize());
+            Transport transport = network != null ? network.transport(host) : new UdpTransport(host);
+            cluster.add(new Process(host.getId(), processes, host, hosts, outputFile(host.getId()).toString(),
+                    dictionary, config, transport));
+        }
+
+        long start = System.nanoTime();
+        for (Process process : cluster) {
+            process.start();
+        }
+        long deadline = start + timeoutSeconds * 1_000_000_000L;
+        boolean done = false;
+        boolean failed = false; // A shard stopped, its instances will never be decided
+        while (!done && !failed && System.nanoTime() - deadline < 0) {
+            Thread.sleep(5);
+            done = true;
+            for (Process process : cluster) {
+                done &= process.isDone();
+                failed |= process.getFailure() != null;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        for (Process process : cluster) {
+            process.shutdown(); // Writes out the buffered decisions
+            report.add(process.getMetrics());
+        }
+        if (network != null) {
+            network.close();
+        }
+        return done ? elapsed : -1;
+    }
+
+    /**
+     * Checks every output against the proposals; returns true if all decisions are valid.
+     */
+    public boolean verify() throws IOException {
+        BufferedReader[] outputs = new BufferedReader[processes];
+        try {
+            for (int p = 0; p < processes; p++) {
+                outputs[p] = Files.newBufferedReader(outputFile(p + 1));
+            }
+            int[][] decisions = new int[processes][];
+            boolean[] ended = new boolean[processes];
+            for (int k = 0; k < proposals; k++) {
+                int decided = 0;
+                for (int p = 0; p < processes; p++) {
+                    String line = ended[p] ? null : outputs[p].readLine();
+                    if (line == null) {
+                        if (!ended[p]) {
+                            error("process " + (p + 1) + " decided only " + k + " of " + proposals + " instances");
+                            ended[p] = true;
+                        }
+                        continue;
+                    }
+                    int[] decision = parse(line);
+                    checkDecision(p, k, decision);
+                    decisions[decided++] = decision;
+                }
+                checkComparable(k, decisions, decided);
+            }
+        } finally {
+            for (BufferedReader output : outputs) {
+                if (output != null) {
+                    output.close();
+                }
+            }
+        }
+        return errorCount == 0;
+    }
+
+    private void checkDecision(int p, int k, int[] decision) {
+        if (!isSubset(proposed[p][k], decision)) {
+            error("instance " + k + ": process " + (p + 1) + " decided " + Arrays.toString(decision)
+                    + " without its proposal " + Arrays.toString(proposed[p][k]));
+        }
+        for (int value : decision) {
+            boolean found = false;
+            for (int q = 0; q < processes && !found; q++) {
+                found = Arrays.binarySearch(proposed[q][k], value) >= 0;
+            }
+            if (!found) {
+                error("instance " + k + ": process " + (p + 1) + " decided " + value + ", which nobody proposed");
+                return;
+            }
+        }
+    }
+
+    // Comparable decisions form a chain, so each one must contain the next smaller one
+    private void checkComparable(int k, int[][] decisions, int count) {
+        Arrays.sort(decisions, 0, count, Comparator.comparingInt(decision -> decision.length));
+        for (int i = 1; i < count; i++) {
+            if (!isSubset(decisions[i - 1], decisions[i])) {
+                error("instance " + k + ": incomparable decisions " + Arrays.toString(decisions[i - 1])
+                        + " and " + Arrays.toString(decisions[i]));
+            }
+        }
+    }
+
+    /**
+     * Returns the first invalid decisions found by {@link #verify()}.
+     */
+    List<String> getErrors() {
+        return errors;
+    }
+
+    private void error(String message) {
+        if (errorCount++ < MAX_REPORTED_ERRORS) {
+            errors.add(message);
+        }
+    }
+
+    private static boolean isSubset(int[] sortedSmall, int[] sortedLarge) {
+        int j = 0;
+        for (int value : sortedSmall) {
+            while (j < sortedLarge.length && sortedLarge[j] < value) {
+                j++;
+            }
+            if (j == sortedLarge.length || sortedLarge[j] != value) {
+                return false;
+            }
+            j++;
+        }
+        return true;
+    }
+
+    private static int[] parse(String line) {
+        String trimmed = line.trim();
+        if (trimmed.isEmpty()) {
+            return new int[0];
+        }
+        String[] parts = trimmed.split("\\s+");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Integer.parseInt(parts[i]);
+        }
+        Arrays.sort(values);
+        return values;
+    }
+
+    private Path configFile(int id) {
+        return dir.resolve(id + ".config");
+    }
+
+    private Path outputFile(int id) {
+        return dir.resolve(id + ".output");
+    }
+
+    /**
+     * Metrics of a run, summed over the processes.
+     */
+    public static final class Report {
+        private final LogHistogram latencyMicros = new LogHistogram();
+        private final LogHistogram rounds = new LogHistogram();
+        private long decisions;
+        private long packets;
+        private long bytes;
+        private long retransmits;
+        private long roundsMax;
+
+        void add(Metrics metrics) {
+            latencyMicros.add(metrics.getDecisionLatencyHistogram());
+            rounds.add(metrics.getRoundsHistogram());
+            decisions += metrics.getDecisions();
+            retransmits += metrics.getRetransmits();
+            roundsMax = Math.max(roundsMax, metrics.getRoundsMax());
+            for (long sent : metrics.getPacketsSent()) {
+                packets += sent;
+            }
+            for (long sent : metrics.getBytesSent()) {
+                bytes += sent;
+            }
+        }
+
+        /**
+         * Returns the report as a JSON object.
+         */
+        String toJson(ClusterBenchmark benchmark, String network, long elapsedNanos, boolean valid) {
+            double seconds = elapsedNanos / 1e9;
+            StringBuilder json = new StringBuilder("{\n");
+            field(json, "processes", benchmark.processes);
+            field(json, "proposals", benchmark.proposals);
+            field(json, "maxSetSize", benchmark.maxSetSize);
+            field(json, "distinctValues", benchmark.distinctValues);
+            json.append("  \"network\": \"").append(network).append("\",\n");
+            json.append("  \"completed\": ").append(elapsedNanos >= 0).append(",\n");
+            json.append("  \"valid\": ").append(valid).append(",\n");
+            field(json, "seconds", elapsedNanos >= 0 ? seconds : 0);
+            field(json, "decisions", decisions);
+            field(json, "decisionsPerSecond", elapsedNanos > 0 ? decisions / seconds : 0);
+            field(json, "latencyMeanMicros", latencyMicros.getMean());
+            field(json, "latencyP50Micros", latencyMicros.getQuantile(0.5));
+            field(json, "latencyP99Micros", latencyMicros.getQuantile(0.99));
+            field(json, "latencyP999Micros", latencyMicros.getQuantile(0.999));
+            field(json, "latencyMaxMicros", latencyMicros.getMax());
+            field(json, "packetsSent", packets);
+            field(json, "bytesSent", bytes);
+            field(json, "packetsPerDecision", decisions > 0 ? (double) packets / decisions : 0);
+            field(json, "bytesPerDecision", decisions > 0 ? (double) bytes / decisions : 0);
+            field(json, "retransmits", retransmits);
+            field(json, "roundsMean", rounds.getMean());
+            field(json, "roundsMax", roundsMax);
+            field(json, "errorCount", benchmark.errorCount);
+            json.append("  \"errors\": [");
+            for (int i = 0; i < benchmark.errors.size(); i++) {
+                json.append(i == 0 ? "\n    \"" : ",\n    \"").append(benchmark.errors.get(i).replace("\"", "\\\"")).append('"');
+            }
+            json.append(benchmark.errors.isEmpty() ? "]\n}\n" : "\n  ]\n}\n");
+            return json.toString();
+        }
+
+        String summary(long elapsedNanos) {
+            return String.format(Locale.ROOT, "%d decisions in %.3f s (%.0f/s), latency p50 %d us, p99 %d us, p999 %d us, "
+                            + "%.3f rounds, %.2f packets and %.0f bytes per decision", decisions, elapsedNanos / 1e9,
+                    elapsedNanos > 0 ? decisions / (elapsedNanos / 1e9) : 0, latencyMicros.getQuantile(0.5),
+                    latencyMicros.getQuantile(0.99), latencyMicros.getQuantile(0.999), rounds.getMean(),
+                    decisions > 0 ? (double) packets / decisions : 0, decisions > 0 ? (double) bytes / decisions : 0);
+        }
+
+        private static void field(StringBuilder json, String name, long value) {
+            json.append("  \"").append(name).append("\": ").append(value).append(",\n");
+        }
+
+        private static void field(StringBuilder json, String name, double value) {
+            json.append("  \"").append(name).append("\": ").append(String.format(Locale.ROOT, "%.3f", value)).append(",\n");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 5) {
+            System.err.println("Usage: java -cp da_proc.jar cs451.ClusterBenchmark OUTPUT_DIR PROCESSES PROPOSALS MAX_SET_SIZE DISTINCT_VALUES");
+            return;
+        }
+        Path dir = Paths.get(args[0]);
+        ClusterBenchmark benchmark = new ClusterBenchmark(dir, Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+                Integer.parseInt(args[3]), Integer.parseInt(args[4]));
+        boolean simulated = "sim".equals(Constants.BENCH_NETWORK);
+
+        benchmark.generate(Constants.BENCH_SEED);
+        Report report = new Report();
+        long elapsed = benchmark.run(simulated, Constants.BENCH_BASE_PORT, Constants.BENCH_TIMEOUT_SECONDS, report);
+        boolean valid = benchmark.verify();
+
+        Files.writeString(dir.resolve("report.json"), report.toJson(benchmark, simulated ? "sim" : "udp", elapsed, valid));
+        if (elapsed < 0) {
+            System.out.println("Timed out after " + Constants.BENCH_TIMEOUT_SECONDS + " s");
+        } else {
+            System.out.println(report.summary(elapsed));
+        }
+        for (String error : benchmark.errors) {
+            System.out.println("Invalid: " + error);
+        }
+        System.exit(elapsed >= 0 && valid ? 0 : 1);
+    }
+}
@@ -1,17 +1,18 @@
 package cs451;
 
-import java.util.*;
-
 public class ConfigData {
     private final int proposalsPerProcess;
     private final int maxElementsPerProposal;
     private final int maxDistinctElements;
-    private final List<Set<Integer>> proposals;
+    private final ValueDictionary dictionary;
+    private final ConfigReader proposals; // Positioned on the first proposal line
 
-    public ConfigData(int proposalsPerProcess, int maxElementsPerProposal, int maxDistinctElements, List<Set<Integer>> proposals) {
+    public ConfigData(int proposalsPerProcess, int maxElementsPerProposal, int maxDistinctElements,
+                      ValueDictionary dictionary, ConfigReader proposals) {
         this.proposalsPerProcess = proposalsPerProcess;
         this.maxElementsPerProposal = maxElementsPerProposal;
         this.maxDistinctElements = maxDistinctElements;
+        this.dictionary = dictionary;
         this.proposals = proposals;
     }
 
@@ -27,7 +28,11 @@ public class ConfigData {
         return maxDistinctElements;
     }
 
-    public List<Set<Integer>> getProposals() {
+    public ValueDictionary getDictionary() {
+        return dictionary;
+    }
+
+    public ConfigReader getProposals() {
         return proposals;
     }
 }
@@ -0,0 +1,152 @@
+package cs451;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Streams a lattice-agreement config file: the header line is parsed on open, proposal lines one at
+ * a time by {@link #next(LatticeSet)}.
+ *
+ * The file is memory-mapped in chunks of {@code CHUNK_BYTES} and ints are parsed straight from the
+ * mapped bytes, so opening does not depend on the file size and reading allocates nothing but the
+ * occasional new mapping. Not thread-safe.
+ */
+public class ConfigReader implements Closeable {
+    private static final long CHUNK_BYTES = 64L << 20;
+
+    private final FileChannel channel;
+    private final long fileSize;
+    private long chunkStart; // File offset of the current mapping
+    private MappedByteBuffer chunk;
+    private final int proposalsPerProcess;
+    private final int maxElementsPerProposal;
+    private final int maxDistinctElements;
+    private int linesRead;
+
+    public ConfigReader(String configFile) throws IOException {
+        this.channel = FileChannel.open(Paths.get(configFile), StandardOpenOption.READ);
+        this.fileSize = channel.size();
+        map(0);
+        int[] header = new int[3];
+        if (readLine(header, null) < header.length) {
+            throw new IOException("Invalid config header in " + configFile);
+        }
+        this.proposalsPerProcess = header[0];
+        this.maxElementsPerProposal = header[1];
+        this.maxDistinctElements = header[2];
+    }
+
+    public int getProposalsPerProcess() {
+        return proposalsPerProcess;
+    }
+
+    public int getMaxElementsPerProposal() {
+        return maxElementsPerProposal;
+    }
+
+    public int getMaxDistinctElements() {
+        return maxDistinctElements;
+    }
+
+    /**
+     * Most distinct values the run can carry, the bound of the process's {@link ValueDictionary}. The
+     * stress tool draws every proposal of a run from one pool of ds values, but ds also reads as a
+     * bound per proposal slot, so the bound allows ds for each of them.
+     */
+    public int getMaxDictionarySize() {
+        return (int) Math.min((long) maxDistinctElements * Math.max(1, proposalsPerProcess), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Adds the values of the next proposal line to {@code target}; returns false once every
+     * proposal announced by the header has been read.
+     */
+    public boolean next(LatticeSet target) throws IOException {
+        if (linesRead == proposalsPerProcess) {
+            return false;
+        }
+        if (readLine(null, target) < 0) {
+            throw new IOException("Config ends after " + linesRead + " of " + proposalsPerProcess + " proposals");
+        }
+        linesRead++;
+        return true;
+    }
+
+    /**
+     * Skips the next {@code count} proposal lines, e.g. the instances a recovered process already decided.
+     */
+    public void skip(int count) throws IOException {
+        for (int i = 0; i < count && linesRead < proposalsPerProcess; i++) {
+            if (readLine(null, null) < 0) {
+                throw new IOException("Config ends after " + linesRead + " of " + proposalsPerProcess + " proposals");
+            }
+            linesRead++;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        chunk = null;
+        channel.close();
+    }
+
+    // Parses the ints of one line into out (as far as it goes) or target, if any; returns their count, -1 at end of file
+    private int readLine(int[] out, LatticeSet target) throws IOException {
+        int count = 0;
+        int c = read();
+        if (c < 0) {
+            return -1;
+        }
+        while (c >= 0 && c != '\n') {
+            if (c == ' ' || c == '\t' || c == '\r') {
+                c = read();
+                continue;
+            }
+            boolean negative = c == '-';
+            if (negative) {
+                c = read();
+            }
+            if (c < '0' || c > '9') {
+                throw new IOException("Unexpected character '" + (char) c + "' in config line " + (linesRead + 2));
+            }
+            long value = 0;
+            while (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                if (value > (negative ? (long) Integer.MAX_VALUE + 1 : Integer.MAX_VALUE)) {
+                    throw new IOException("Value out of range in config line " + (linesRead + 2));
+                }
+                c = read();
+            }
+            int parsed = (int) (negative ? -value : value);
+            if (out != null) {
+                if (count < out.length) {
+                    out[count] = parsed;
+                }
+            } else if (target != null) {
+                target.add(parsed);
+            }
+            count++;
+        }
+        return count;
+    }
+
+    private int read() throws IOException {
+        if (!chunk.hasRemaining()) {
+            long next = chunkStart + chunk.limit();
+            if (next >= fileSize) {
+                return -1;
+            }
+            map(next);
+        }
+        return chunk.get();
+    }
+
+    private void map(long start) throws IOException {
+        chunkStart = start;
+        chunk = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(CHUNK_BYTES, fileSize - start));
+    }
+}
@@ -17,5 +17,94 @@ public class Constants {
 
     // indexes for config
     public static final int CONFIG_VALUE = 6;
+
+    // datagram batching, overridable with -Dcs451.batch.maxBytes and -Dcs451.batch.lingerMicros
+    public static final int BATCH_MAX_BYTES = Integer.getInteger("cs451.batch.maxBytes", 1472); // Ethernet MTU minus IP/UDP headers
+    public static final long BATCH_LINGER_MICROS = Long.getLong("cs451.batch.lingerMicros", 1000);
+    public static final int ACK_REPEAT = Integer.getInteger("cs451.ack.repeat", 3); // Datagrams each cumulative ACK entry rides on
+
+    // records larger than a datagram are fragmented, overridable with -Dcs451.fragment.*: records kept per peer
+    // to resend single fragments (cache), reassemblies in progress per peer (partials), largest record accepted
+    // (maxBytes) and how long a reassembly may stall before its missing fragments are requested (requestMicros)
+    public static final int FRAGMENT_CACHE = Integer.getInteger("cs451.fragment.cache", 64);
+    public static final int FRAGMENT_PARTIALS = Integer.getInteger("cs451.fragment.partials", 64);
+    public static final int FRAGMENT_MAX_BYTES = Integer.getInteger("cs451.fragment.maxBytes", 64 << 20);
+    public static final long FRAGMENT_REQUEST_MICROS = Long.getLong("cs451.fragment.requestMicros", 10_000);
+
+    // window of concurrently active instances, overridable with -Dcs451.window.{initial,min,max}
+    public static final int WINDOW_INITIAL = Integer.getInteger("cs451.window.initial", 32);
+    public static final int WINDOW_MIN = Integer.getInteger("cs451.window.min", 4);
+    public static final int WINDOW_MAX = Integer.getInteger("cs451.window.max", 1024);
+
+    // retransmission timeouts, overridable with -Dcs451.rto.{initialMillis,minMillis,maxMillis}
+    public static final long RTO_INITIAL_MILLIS = Long.getLong("cs451.rto.initialMillis", 100);
+    public static final long RTO_MIN_MILLIS = Long.getLong("cs451.rto.minMillis", 50);
+    public static final long RTO_MAX_MILLIS = Long.getLong("cs451.rto.maxMillis", 2000);
+    public static final long TIMER_TICK_MICROS = Long.getLong("cs451.timer.tickMicros", 1000);
+    public static final int TIMER_BUCKETS = Integer.getInteger("cs451.timer.buckets", 1024);
+
+    // decision log group flushes, overridable with -Dcs451.log.flushBytes and -Dcs451.log.flushMicros
+    public static final int LOG_FLUSH_BYTES = Integer.getInteger("cs451.log.flushBytes", 64 * 1024);
+    public static final long LOG_FLUSH_MICROS = Long.getLong("cs451.log.flushMicros", 10_000);
+
+    // instances kept in memory at once, overridable with -Dcs451.instances.capacity; 0 keeps all of them.
+    // The default leaves room for peers up to three windows ahead of our release prefix; instances past
+    // it are dropped until the prefix moves and their proposers retransmit. A bounded run releases an
+    // instance once every peer heard from within -Dcs451.release.peerTimeoutMillis decided it
+    public static final int INSTANCE_CAPACITY = Integer.getInteger("cs451.instances.capacity", 4 * WINDOW_MAX);
+    public static final long RELEASE_PEER_TIMEOUT_MILLIS = Long.getLong("cs451.release.peerTimeoutMillis", 10_000);
+
+    // simulated network used by SimulatedCluster, overridable with -Dcs451.sim.*; a single link is
+    // overridden with -Dcs451.sim.link.FROM-TO=loss=0.1,latencyMicros=500,... (see LinkProfile#with)
+    public static final long SIM_SEED = Long.getLong("cs451.sim.seed", 1);
+    public static final double SIM_LOSS = Double.parseDouble(System.getProperty("cs451.sim.loss", "0"));
+    public static final long SIM_LATENCY_MICROS = Long.getLong("cs451.sim.latencyMicros", 100);
+    public static final long SIM_JITTER_MICROS = Long.getLong("cs451.sim.jitterMicros", 50);
+    public static final String SIM_DISTRIBUTION = System.getProperty("cs451.sim.distribution", "uniform");
+    public static final double SIM_REORDER = Double.parseDouble(System.getProperty("cs451.sim.reorder", "0"));
+    public static final long SIM_REORDER_DELAY_MICROS = Long.getLong("cs451.sim.reorderDelayMicros", 1000);
+    public static final long SIM_BANDWIDTH = Long.getLong("cs451.sim.bandwidthBytesPerSec", 0); // 0 for unlimited
+    public static final long SIM_QUEUE_MICROS = Long.getLong("cs451.sim.queueMicros", 50_000);
+    public static final int SIM_RECEIVE_BUFFER_BYTES = Integer.getInteger("cs451.sim.receiveBufferBytes", 212_992); // Linux rmem_default
+
+    // crash recovery, enabled with -Dcs451.wal.dir: each shard logs its accepted sets and rounds there, and a
+    // restarted process resumes after the last line of its output file. -Dcs451.wal.bytes sizes each shard's log
+    public static final String WAL_DIR = System.getProperty("cs451.wal.dir");
+    public static final int WAL_BYTES = Integer.getInteger("cs451.wal.bytes", 64 << 20);
+
+    // benchmark runner (see ClusterBenchmark), overridable with -Dcs451.bench.*: seed of the generated configs, network
+    // ("udp" on loopback from basePort + 1 on, or "sim" for the -Dcs451.sim.* network) and how long to wait for decisions
+    public static final long BENCH_SEED = Long.getLong("cs451.bench.seed", 1);
+    public static final String BENCH_NETWORK = System.getProperty("cs451.bench.network", "udp");
+    public static final int BENCH_BASE_PORT = Integer.getInteger("cs451.bench.basePort", 11000);
+    public static final long BENCH_TIMEOUT_SECONDS = Long.getLong("cs451.bench.timeoutSeconds", 300);
+
+    // proposal strategy: with -Dcs451.propose.collectMicros > 0, a process announces its value for an instance and
+    // waits for the peers' values, at most a round trip or this long, before its first round (see Shard)
+    public static final long PROPOSE_COLLECT_MICROS = Long.getLong("cs451.propose.collectMicros", 0);
+
+    // relayed dissemination (see RelayTree), enabled with -Dcs451.relay.fanout > 0: the first transmission of a round
+    // goes down a tree of this fanout rooted at the proposer and its ACKs come back up merged per subtree
+    public static final int RELAY_FANOUT = Integer.getInteger("cs451.relay.fanout", 0);
+
+    // failure detector (see FailureDetector), overridable with -Dcs451.fd.*: a heartbeat goes to each peer nothing else
+    // was sent to for heartbeatMillis, or for probeMillis once the peer is suspected; a peer silent for at least
+    // minTimeoutMillis is suspected and no longer sent proposals or retransmissions. minTimeoutMillis 0 disables it
+    public static final long FD_HEARTBEAT_MILLIS = Long.getLong("cs451.fd.heartbeatMillis", 50);
+    public static final long FD_PROBE_MILLIS = Long.getLong("cs451.fd.probeMillis", 1000);
+    public static final long FD_MIN_TIMEOUT_MILLIS = Long.getLong("cs451.fd.minTimeoutMillis", 500);
+    public static final long FD_MAX_MARGIN_MILLIS = Long.getLong("cs451.fd.maxMarginMillis", 10_000);
+
+    // flight recorder events (see FlightEvents): one instance in -Dcs451.jfr.sample has its whole timeline recorded,
+    // other instances only retransmissions and decisions slower than -Dcs451.jfr.slowMillis
+    public static final int JFR_SAMPLE = Math.max(1, Integer.getInteger("cs451.jfr.sample", 64));
+    public static final long JFR_SLOW_MILLIS = Long.getLong("cs451.jfr.slowMillis", 100);
+
+    // period of the stats line on standard output, overridable with -Dcs451.metrics.intervalMillis; 0 disables it
+    public static final long METRICS_INTERVAL_MILLIS = Long.getLong("cs451.metrics.intervalMillis", 0);
+
+    // protocol worker threads, instances are partitioned by proposalId, overridable with -Dcs451.shards
+    public static final int SHARDS = Integer.getInteger("cs451.shards",
+            Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
 }
 
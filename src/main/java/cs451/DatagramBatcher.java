@@ -0,0 +1,352 @@
+package cs451;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntSupplier;
+
+/**
+ * Packs messages bound for the same host into shared datagrams.
+ *
+ * Messages for any proposalId wait in a per-destination {@link OutboundQueue}, where a newer round
+ * of an instance replaces the queued one, and are encoded once the queue holds a batch worth of
+ * records or its oldest message has waited for the linger time. A background thread takes care of
+ * the linger flushes.
+ *
+ * ACKs do not get records of their own: they are collected per destination in an {@link AckLedger}
+ * and piggybacked as one cumulative record on the next datagrams to that host, or sent on their
+ * own once the oldest unsent one has lingered. ACKs relayed up a {@link RelayTree} are merged per
+ * round in a {@link RelayAckLedger} and sent the same way.
+ *
+ * A record that does not fit in a datagram of the batch size is sent as numbered fragments; the
+ * last {@code fragmentCache} fragmented records of each destination are kept so that a receiver
+ * missing some fragments can ask for just those (see {@link Reassembler}).
+ *
+ * With a {@link FailureDetector}, a host that was sent nothing for its heartbeat interval gets a
+ * datagram holding just a heartbeat, so that it keeps hearing from us while we have no work for it.
+ */
+public class DatagramBatcher {
+    private static final int DATAGRAM_HEADER_BYTES = 20; // Version byte, sender and decided prefix record, at most
+    private static final int MIN_FRAGMENT_BYTES = 64;
+
+    private final Transport transport;
+    private final int processId;
+    private final IntSupplier decidedPrefix; // Announced at the start of every datagram, null to announce nothing
+    private final FailureDetector detector; // Null to send no heartbeats
+    private final Metrics metrics;
+    private final Batch[] batches; // Indexed by hostId - 1
+    private final int maxBatchBytes;
+    private final int fragmentBytes; // Record bytes carried per fragment
+    private final int fragmentCache;
+    private final long lingerNanos;
+    private final Thread flusher;
+    private volatile boolean running = true;
+
+    public DatagramBatcher(Transport transport, int processId, List<Host> hosts, int maxBatchBytes,
+                           long lingerMicros, int ackRepeat, int fragmentCache, IntSupplier decidedPrefix,
+                           FailureDetector detector, Metrics metrics) {
+        this.transport = transport;
+        this.processId = processId;
+        this.decidedPrefix = decidedPrefix;
+        this.detector = detector;
+        this.metrics = metrics;
+        this.maxBatchBytes = Math.min(maxBatchBytes, Transport.MAX_PACKET_SIZE);
+        this.fragmentBytes = Math.max(MIN_FRAGMENT_BYTES,
+                this.maxBatchBytes - DATAGRAM_HEADER_BYTES - MessageCodec.FRAGMENT_HEADER_MAX_BYTES);
+        this.fragmentCache = fragmentCache;
+        this.lingerNanos = lingerMicros * 1000;
+        this.batches = new Batch[hosts.size()];
+        for (Host host : hosts) {
+            batches[host.getId() - 1] = new Batch(host, ackRepeat);
+        }
+        this.flusher = new Thread(this::lingerLoop, "batch-flusher");
+        this.flusher.setDaemon(true);
+    }
+
+    /**
+     * Starts the thread sending lingering batches and heartbeats.
+     */
+    public void start() {
+        flusher.start();
+    }
+
+    /**
+     * Queues a PROPOSAL, PROPOSAL_DELTA or NACK for the given host; ACKs go to the host's ledger.
+     */
+    public void send(Message message, int hostId) {
+        switch (message.getType()) {
+            case ACK:
+                sendAck(hostId, message.getProposalId(), message.getProposalNb());
+                return;
+            case DECIDED_PREFIX:
+                throw new IllegalArgumentException("The decided prefix is announced by the batcher itself");
+            default:
+        }
+        Batch batch = batches[hostId - 1];
+        synchronized (batch) {
+            batch.enqueued(batch.queue.offer(message));
+        }
+    }
+
+    /**
+     * Queues a full proposal for the given host, its message being built when the batch is sent.
+     */
+    public void sendProposal(OutboundQueue.Proposal proposal, int hostId) {
+        Batch batch = batches[hostId - 1];
+        synchronized (batch) {
+            batch.enqueued(batch.queue.offer(proposal));
+        }
+    }
+
+    /**
+     * Acknowledges a round of an instance to the given host through its cumulative ACK ledger.
+     */
+    public void sendAck(int hostId, int proposalId, int proposalNb) {
+        Batch batch = batches[hostId - 1];
+        synchronized (batch) {
+            batch.acks.add(proposalId, proposalNb);
+            if (lingerNanos == 0) {
+                batch.flush();
+            }
+        }
+    }
+
+    /**
+     * Relays the ACKs of the listed ackers for a round of the origin's instance to the given host,
+     * the next one up the origin's {@link RelayTree}.
+     */
+    public void sendRelayAck(int hostId, int origin, int proposalId, int proposalNb, int[] ackers, int count) {
+        Batch batch = batches[hostId - 1];
+        synchronized (batch) {
+            batch.relayAcks.add(origin, proposalId, proposalNb, ackers, count);
+            if (lingerNanos == 0) {
+                batch.flush();
+            }
+        }
+    }
+
+    /**
+     * Resends the listed fragments of one of our fragmented records, if the host's cache still has it.
+     */
+    public void resendFragments(int hostId, int seq, int[] indices, int count) {
+        Batch batch = batches[hostId - 1];
+        synchronized (batch) {
+            Fragmented record = batch.fragmented.get(seq);
+            if (record == null) {
+                return; // Evicted, the proposer's retransmission timer resends the whole record
+            }
+            int resent = 0;
+            for (int i = 0; i < count; i++) {
+                if (indices[i] >= 0 && indices[i] < record.count) {
+                    batch.appendFragment(record, indices[i]);
+                    resent++;
+                }
+            }
+            metrics.onFragmentsResent(resent);
+            batch.flush();
+        }
+    }
+
+    /**
+     * Asks the host for the listed fragments of one of its records, right away.
+     */
+    public void requestFragments(int hostId, int seq, int[] indices, int count) {
+        Batch batch = batches[hostId - 1];
+        synchronized (batch) {
+            batch.open();
+            MessageCodec.putFragmentRequest(batch.packet.buffer(), processId, seq, indices, count);
+            batch.flush();
+        }
+    }
+
+    /**
+     * Sends every pending batch immediately.
+     */
+    public void flushAll() {
+        for (Batch batch : batches) {
+            synchronized (batch) {
+                batch.flush();
+            }
+        }
+    }
+
+    public void close() {
+        running = false;
+        flusher.interrupt();
+        flushAll();
+    }
+
+    private void lingerLoop() {
+        while (running) {
+            LockSupport.parkNanos(Math.max(lingerNanos / 2, 50_000));
+            long now = System.nanoTime();
+            for (Batch batch : batches) {
+                synchronized (batch) {
+                    boolean recordsDue = !batch.queue.isEmpty() && now - batch.queue.getFirstQueuedNanos() >= lingerNanos;
+                    boolean acksDue = batch.acks.freshCount() > 0 && now - batch.acks.getFirstFreshNanos() >= lingerNanos
+                            || !batch.relayAcks.isEmpty() && now - batch.relayAcks.getFirstAddedNanos() >= lingerNanos;
+                    if (recordsDue || acksDue) {
+                        batch.flush();
+                    }
+                    int hostId = batch.host.getId();
+                    if (detector != null && hostId != processId && batch.packet == null
+                            && now - batch.lastSentNanos >= detector.heartbeatNanos(hostId, now)) {
+                        batch.open();
+                        MessageCodec.putHeartbeat(batch.packet.buffer(), processId);
+                        batch.emit();
+                    }
+                }
+            }
+        }
+    }
+
+    private class Batch {
+        private final Host host;
+        private final AckLedger acks;
+        private final RelayAckLedger relayAcks = new RelayAckLedger();
+        private final OutboundQueue queue = new OutboundQueue();
+        private final List<Message> drained = new ArrayList<>(); // Reused by flush()
+        private OutboundPacket packet; // Pooled buffer being filled during a flush, null otherwise
+        private final Map<Integer, Fragmented> fragmented = new LinkedHashMap<Integer, Fragmented>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Fragmented> eldest) {
+                return size() > fragmentCache;
+            }
+        };
+        private int nextSeq;
+        private long lastSentNanos = System.nanoTime();
+
+        private Batch(Host host, int ackRepeat) {
+            this.host = host;
+            this.acks = new AckLedger(ackRepeat);
+        }
+
+        private void open() {
+            packet = transport.acquire();
+            MessageCodec.putHeader(packet.buffer(), processId);
+            if (decidedPrefix != null) {
+                MessageCodec.encodeRecord(Message.createDecidedPrefix(processId, decidedPrefix.getAsInt()), packet.buffer());
+            }
+        }
+
+        // Caller holds the batch monitor; added is false if the message only replaced a queued one
+        private void enqueued(boolean added) {
+            if (!added) {
+                metrics.onCoalesced();
+            }
+            if (lingerNanos == 0 || queue.getEstimatedBytes() >= maxBatchBytes) {
+                flush();
+            }
+        }
+
+        // Caller holds the batch monitor
+        private void flush() {
+            if (!queue.isEmpty()) {
+                for (Message message : queue.drain(drained)) {
+                    append(message);
+                }
+                drained.clear();
+            }
+            if (!relayAcks.isEmpty()) {
+                if (packet == null) {
+                    open();
+                }
+                while (!relayAcks.encode(packet.buffer(), processId, maxBatchBytes)) {
+                    emit();
+                    open();
+                }
+            }
+            if (acks.freshCount() > 0 || (packet != null && !acks.isEmpty())) {
+                if (packet == null) {
+                    open();
+                }
+                // Piggyback the ledger; fresh ACKs that do not fit follow in ACK-only datagrams
+                while (!acks.encode(packet.buffer(), processId, maxBatchBytes) || acks.freshCount() > 0) {
+                    emit();
+                    open();
+                }
+            }
+            if (packet == null) {
+                return;
+            }
+            emit();
+        }
+
+        // Encodes the record, sending the datagram first if the record does not fit
+        private void append(Message message) {
+            int size = MessageCodec.encodedSize(message);
+            if (size > maxBatchBytes - DATAGRAM_HEADER_BYTES) {
+                fragment(message, size);
+                return;
+            }
+            if (packet != null && packet.buffer().position() + size > maxBatchBytes) {
+                emit();
+            }
+            if (packet == null) {
+                open();
+            }
+            ByteBuffer buffer = packet.buffer();
+            int start = buffer.position();
+            try {
+                MessageCodec.encodeRecord(message, buffer);
+            } catch (IllegalArgumentException e) {
+                buffer.position(start); // The packet is reused for the next record
+                System.err.println("Error sending message to " + host.getId() + ": " + e.getMessage());
+            }
+        }
+
+        // Encodes the record aside and appends it as fragments, keeping it for selective retransmission
+        private void fragment(Message message, int size) {
+            byte[] bytes = new byte[size];
+            MessageCodec.encodeRecord(message, ByteBuffer.wrap(bytes));
+            Fragmented record = new Fragmented(nextSeq++, message.getProposalId(),
+                    message.getType() == Message.MessageType.NACK, bytes, (size + fragmentBytes - 1) / fragmentBytes);
+            if (fragmentCache > 0) {
+                fragmented.put(record.seq, record);
+            }
+            metrics.onFragmented();
+            for (int index = 0; index < record.count; index++) {
+                appendFragment(record, index);
+            }
+        }
+
+        private void appendFragment(Fragmented record, int index) {
+            int size = MessageCodec.fragmentSize(processId, record.seq, record.proposalId, index, record.count, record.bytes.length);
+            if (packet != null && packet.buffer().position() + size > maxBatchBytes) {
+                emit();
+            }
+            if (packet == null) {
+                open();
+            }
+            MessageCodec.putFragment(packet.buffer(), processId, record.seq, record.proposalId, record.nack,
+                    index, record.count, record.bytes);
+        }
+
+        private void emit() {
+            metrics.onSent(host.getId(), packet.buffer().position());
+            transport.send(packet, host);
+            packet = null;
+            lastSentNanos = System.nanoTime();
+        }
+    }
+
+    // A record sent as fragments: bytes [index * chunk, (index + 1) * chunk) travel in fragment index
+    private static final class Fragmented {
+        private final int seq;
+        private final int proposalId;
+        private final boolean nack;
+        private final byte[] bytes;
+        private final int count;
+
+        private Fragmented(int seq, int proposalId, boolean nack, byte[] bytes, int count) {
+            this.seq = seq;
+            this.proposalId = proposalId;
+            this.nack = nack;
+            this.bytes = bytes;
+            this.count = count;
+        }
+    }
+}
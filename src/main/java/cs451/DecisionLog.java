@@ -0,0 +1,233 @@
+package cs451;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes decided values to the output file, in instance order, on a dedicated thread.
+ *
+ * Protocol threads only {@link #publish} a decision into a ring indexed by {@code id & mask}; the
+ * ring must be at least as large as the number of instances that can be undecided at once, which
+ * the {@link InstanceWindow} bounds by its maximum size. The writer thread takes the decided prefix
+ * off the ring, formats the values as ASCII straight into a reusable buffer and writes it through a
+ * {@link FileChannel} once it holds {@code flushBytes} or its oldest line is {@code flushMicros} old.
+ * {@link #close()} writes everything that was decided before returning.
+ *
+ * {@code onAdvance} runs on the writer thread whenever the prefix grows, and at least once per
+ * flush interval otherwise.
+ *
+ * With {@code resume}, an existing output file is kept: its complete lines count as the decided
+ * prefix, a partial last line left by a crash is cut off, and new decisions are appended.
+ */
+public class DecisionLog {
+    private static final byte[] MIN_VALUE = Integer.toString(Integer.MIN_VALUE).getBytes();
+
+    private final FileChannel channel;
+    private final AtomicReferenceArray<LatticeSet> ring;
+    private final int mask;
+    private final int totalInstances;
+    private final ByteBuffer buffer;
+    private final long flushNanos;
+    private final Runnable onAdvance;
+    private final Thread thread;
+    private volatile int nextId; // Decisions below this one were taken off the ring
+    private volatile int writtenId; // Decisions below this one were written to the file
+    private int formattedId; // Decisions below this one are complete lines in the buffer or the file, writer thread only
+    private volatile boolean running = true;
+    private long firstPendingNanos; // Time the oldest unwritten line was formatted, writer thread only
+
+    public DecisionLog(String outputFile, int totalInstances, int capacity, int flushBytes, long flushMicros,
+                       Runnable onAdvance, boolean resume) throws IOException {
+        this.channel = resume
+                ? FileChannel.open(Paths.get(outputFile), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(Paths.get(outputFile), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.ring = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.totalInstances = totalInstances;
+        this.buffer = ByteBuffer.allocateDirect(Math.max(64, flushBytes));
+        this.flushNanos = flushMicros * 1000;
+        this.onAdvance = onAdvance;
+        this.thread = new Thread(this::run, "decision-log");
+        this.thread.setDaemon(true);
+        if (resume) {
+            this.nextId = Math.min(totalInstances, skipWrittenLines());
+            this.writtenId = nextId;
+            this.formattedId = nextId;
+        }
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Hands a decided value over to the writer; {@code id} must be within the ring of {@link #getNextId()}.
+     */
+    public void publish(int id, LatticeSet value) {
+        ring.set(id & mask, value);
+        if (id == nextId) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Returns the number of decisions taken off the ring, i.e. the length of the decided prefix.
+     */
+    public int getNextId() {
+        return nextId;
+    }
+
+    /**
+     * Returns the number of decisions written to the file, which survive a crash of the process.
+     */
+    public int getWrittenId() {
+        return writtenId;
+    }
+
+    /**
+     * Stops the writer thread and writes every decision of the decided prefix to the file.
+     */
+    public void close() throws IOException {
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                boolean advanced = drain();
+                onAdvance.run(); // Also while idle, the caller's window may wait on more than the prefix
+                long pending = System.nanoTime() - firstPendingNanos;
+                if (buffer.position() > 0 && (pending >= flushNanos || nextId == totalInstances)) {
+                    flush();
+                } else if (!advanced) {
+                    LockSupport.parkNanos(buffer.position() > 0 ? flushNanos - pending : flushNanos);
+                }
+            }
+            drain();
+            flush();
+        } catch (IOException e) {
+            System.err.println("Error writing decisions: " + e.getMessage());
+        }
+    }
+
+    // Formats every decision of the contiguous decided prefix, returns true if there was any
+    private boolean drain() throws IOException {
+        int start = nextId;
+        int id = start;
+        while (id < totalInstances) {
+            LatticeSet value = ring.get(id & mask);
+            if (value == null) {
+                break;
+            }
+            ring.set(id & mask, null);
+            nextId = ++id; // Frees the slot for the window before the slower formatting
+            format(value);
+        }
+        return id != start;
+    }
+
+    private void format(LatticeSet value) throws IOException {
+        if (buffer.position() == 0) {
+            firstPendingNanos = System.nanoTime();
+        }
+        ValueDictionary dictionary = value.getDictionary();
+        boolean first = true;
+        for (int i = value.nextIndex(0); i >= 0; i = value.nextIndex(i + 1)) {
+            if (buffer.remaining() < 12) { // Separator plus the longest int
+                flush();
+            }
+            if (!first) {
+                buffer.put((byte) ' ');
+            }
+            putInt(dictionary.valueAt(i));
+            first = false;
+        }
+        if (!buffer.hasRemaining()) {
+            flush();
+        }
+        buffer.put((byte) '\n');
+        formattedId++;
+        if (!buffer.hasRemaining()) {
+            flush();
+        }
+    }
+
+    private void putInt(int value) {
+        if (value == Integer.MIN_VALUE) {
+            buffer.put(MIN_VALUE);
+            return;
+        }
+        if (value < 0) {
+            buffer.put((byte) '-');
+            value = -value;
+        }
+        int digits = 1;
+        for (int v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        int end = buffer.position() + digits;
+        for (int p = end - 1; p >= buffer.position(); p--) {
+            buffer.put(p, (byte) ('0' + value % 10));
+            value /= 10;
+        }
+        buffer.position(end);
+    }
+
+    // Counts the complete lines already in the file, cuts off whatever follows the last one and appends after it
+    private int skipWrittenLines() throws IOException {
+        long size = channel.size();
+        long position = 0;
+        long end = 0;
+        int lines = 0;
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    lines++;
+                    end = position + i + 1;
+                }
+            }
+            position += read;
+        }
+        buffer.clear();
+        channel.truncate(end);
+        channel.position(end);
+        return lines;
+    }
+
+    private void flush() throws IOException {
+        FlightEvents.LogFlushEvent event = new FlightEvents.LogFlushEvent();
+        event.begin();
+        buffer.flip();
+        int bytes = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+        writtenId = formattedId;
+        if (event.shouldCommit()) { // Only flushes above the event's threshold
+            event.bytes = bytes;
+            event.decidedPrefix = formattedId;
+            event.commit();
+        }
+        firstPendingNanos = System.nanoTime();
+    }
+}
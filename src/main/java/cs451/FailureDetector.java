@@ -0,0 +1,82 @@
+package cs451;
+
+/**
+ * Eventually perfect failure detector over the traffic peers send us anyway.
+ *
+ * Every datagram from a peer is a heartbeat; the {@link DatagramBatcher} sends an explicit one to
+ * any peer it has not sent anything to for {@code heartbeatMillis}, so idle peers keep being heard;
+ * suspected peers only get one every {@code probeMillis}, which tells them we are still here.
+ * A peer is suspected once it has been silent for longer than its timeout: the smoothed gap
+ * between its datagrams plus four deviations, at least {@code minTimeoutMillis}, plus a margin.
+ * Hearing from a suspected peer doubles its margin, up to {@code maxMarginMillis}, so a peer that
+ * is only slow stops being suspected after a few mistakes.
+ *
+ * Suspicion is evaluated on demand, from any thread; {@link #onHeard} runs on the network thread.
+ */
+public class FailureDetector {
+    private static final double GAIN = 0.125; // Weight of a new gap in the smoothed gap, as for RTTs
+
+    private final long heartbeatNanos;
+    private final long probeNanos;
+    private final long minTimeoutNanos;
+    private final long maxMarginNanos;
+    private final Peer[] peers; // Indexed by hostId - 1
+
+    public FailureDetector(int totalProcesses, long heartbeatMillis, long probeMillis, long minTimeoutMillis, long maxMarginMillis) {
+        this.heartbeatNanos = heartbeatMillis * 1_000_000;
+        this.probeNanos = Math.max(probeMillis, heartbeatMillis) * 1_000_000;
+        this.minTimeoutNanos = minTimeoutMillis * 1_000_000;
+        this.maxMarginNanos = Math.max(maxMarginMillis, heartbeatMillis) * 1_000_000;
+        this.peers = new Peer[totalProcesses];
+        long now = System.nanoTime();
+        for (int i = 0; i < totalProcesses; i++) {
+            peers[i] = new Peer(now, heartbeatNanos, minTimeoutNanos);
+        }
+    }
+
+    /**
+     * Records a datagram from the host; returns true if the host was suspected until now.
+     */
+    public boolean onHeard(int hostId, long now) {
+        Peer peer = peers[hostId - 1];
+        long gap = now - peer.lastHeardNanos;
+        boolean suspected = gap > peer.timeoutNanos;
+        if (suspected) {
+            peer.marginNanos = Math.min(maxMarginNanos, peer.marginNanos * 2);
+        } else {
+            double error = gap - peer.meanGapNanos;
+            peer.meanGapNanos += GAIN * error;
+            peer.deviationNanos += GAIN * (Math.abs(error) - peer.deviationNanos);
+        }
+        peer.timeoutNanos = Math.max(minTimeoutNanos, (long) (peer.meanGapNanos + 4 * peer.deviationNanos)) + peer.marginNanos;
+        peer.lastHeardNanos = now;
+        return suspected;
+    }
+
+    public boolean isSuspected(int hostId, long now) {
+        Peer peer = peers[hostId - 1];
+        return now - peer.lastHeardNanos > peer.timeoutNanos;
+    }
+
+    /**
+     * Returns how long we may stay silent towards a peer before sending it a heartbeat.
+     */
+    public long heartbeatNanos(int hostId, long now) {
+        return isSuspected(hostId, now) ? probeNanos : heartbeatNanos;
+    }
+
+    private static final class Peer {
+        private volatile long lastHeardNanos;
+        private volatile long timeoutNanos;
+        private double meanGapNanos; // Network thread only, like the deviation and the margin
+        private double deviationNanos;
+        private long marginNanos;
+
+        private Peer(long now, long heartbeatNanos, long minTimeoutNanos) {
+            this.lastHeardNanos = now; // A peer that never starts is suspected one timeout after we do
+            this.meanGapNanos = heartbeatNanos;
+            this.marginNanos = heartbeatNanos;
+            this.timeoutNanos = minTimeoutNanos + heartbeatNanos;
+        }
+    }
+}
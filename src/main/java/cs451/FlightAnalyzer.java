@@ -0,0 +1,159 @@
+package cs451;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Rebuilds per-instance timelines from the {@link FlightEvents} of one or more JFR recordings.
+ *
+ * Usage: {@code java -cp bin/da_proc.jar cs451.FlightAnalyzer RECORDING.jfr... [-i INSTANCE]... [-n COUNT]}.
+ * Prints the event counts, then the timeline of every process for each instance given with -i, or
+ * else for the COUNT (default 10) slowest recorded decisions. Times are relative to the first
+ * event of the instance on that process, normally its first round. Recordings of different
+ * processes can be passed together, the events carry the process id.
+ */
+public class FlightAnalyzer {
+    private final Map<Long, List<RecordedEvent>> timelines = new HashMap<>(); // By process << 32 | instance
+    private final List<RecordedEvent> decisions = new ArrayList<>();
+    private final Map<String, Integer> counts = new TreeMap<>();
+    private long slowFlushes;
+    private Duration slowestFlush = Duration.ZERO;
+
+    public void read(String file) throws IOException {
+        try (RecordingFile recording = new RecordingFile(Paths.get(file))) {
+            while (recording.hasMoreEvents()) {
+                RecordedEvent event = recording.readEvent();
+                String name = event.getEventType().getName();
+                if (!name.startsWith("cs451.")) {
+                    continue;
+                }
+                counts.merge(name, 1, Integer::sum);
+                if (name.equals("cs451.LogFlush")) {
+                    slowFlushes++;
+                    if (event.getDuration().compareTo(slowestFlush) > 0) {
+                        slowestFlush = event.getDuration();
+                    }
+                    continue;
+                }
+                long key = (long) event.getInt("process") << 32 | event.getInt("instance");
+                timelines.computeIfAbsent(key, k -> new ArrayList<>()).add(event);
+                if (name.equals("cs451.Decision")) {
+                    decisions.add(event);
+                }
+            }
+        }
+    }
+
+    public void printSummary() {
+        for (Map.Entry<String, Integer> count : counts.entrySet()) {
+            System.out.printf("%-18s %d%n", count.getKey(), count.getValue());
+        }
+        if (slowFlushes > 0) {
+            System.out.printf(Locale.ROOT, "%d slow log flushes, the slowest took %.3f ms%n", slowFlushes, millis(slowestFlush));
+        }
+    }
+
+    /**
+     * Prints the timelines of the given instances, on every process that recorded them.
+     */
+    public void printInstances(Set<Integer> instances) {
+        List<Long> keys = new ArrayList<>();
+        for (long key : timelines.keySet()) {
+            if (instances.contains((int) key)) {
+                keys.add(key);
+            }
+        }
+        keys.sort(Comparator.comparingInt((Long key) -> (int) (long) key).thenComparingLong(key -> key >>> 32));
+        for (long key : keys) {
+            printTimeline(key);
+        }
+    }
+
+    /**
+     * Prints the timelines of the {@code count} slowest recorded decisions.
+     */
+    public void printSlowest(int count) {
+        decisions.sort(Comparator.comparingLong((RecordedEvent event) -> event.getLong("latency")).reversed());
+        for (int i = 0; i < Math.min(count, decisions.size()); i++) {
+            RecordedEvent decision = decisions.get(i);
+            printTimeline((long) decision.getInt("process") << 32 | decision.getInt("instance"));
+        }
+    }
+
+    private void printTimeline(long key) {
+        List<RecordedEvent> events = timelines.get(key);
+        events.sort(Comparator.comparing(RecordedEvent::getStartTime));
+        Instant start = events.get(0).getStartTime();
+        System.out.printf("%nprocess %d, instance %d%n", key >>> 32, (int) key);
+        for (RecordedEvent event : events) {
+            System.out.printf(Locale.ROOT, "  +%9.3f ms  %s%n", millis(Duration.between(start, event.getStartTime())), describe(event));
+        }
+    }
+
+    private static String describe(RecordedEvent event) {
+        switch (event.getEventType().getName()) {
+            case "cs451.Round":
+                return "round " + event.getInt("round") + " proposed, " + event.getInt("setSize") + " values"
+                        + (event.getBoolean("delta") ? " (deltas to peers that answered)" : "");
+            case "cs451.Response":
+                return "round " + event.getInt("round") + (event.getBoolean("nack") ? " NACK" : " ACK")
+                        + " from " + event.getInt("peer");
+            case "cs451.Retransmit":
+                return "round " + event.getInt("round") + " resent to " + event.getInt("peer")
+                        + " (attempt " + event.getInt("attempt") + ")";
+            case "cs451.Decision":
+                return String.format(Locale.ROOT, "decided after %d rounds, %d values, %.3f ms since the first proposal",
+                        event.getInt("rounds"), event.getInt("setSize"), event.getLong("latency") / 1e6);
+            default:
+                return event.getEventType().getName();
+        }
+    }
+
+    private static double millis(Duration duration) {
+        return duration.toNanos() / 1e6;
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> files = new ArrayList<>();
+        Set<Integer> instances = new HashSet<>();
+        int slowest = 10;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-i") && i + 1 < args.length) {
+                instances.add(Integer.parseInt(args[++i]));
+            } else if (args[i].equals("-n") && i + 1 < args.length) {
+                slowest = Integer.parseInt(args[++i]);
+            } else {
+                files.add(args[i]);
+            }
+        }
+        if (files.isEmpty()) {
+            System.err.println("Usage: java -cp da_proc.jar cs451.FlightAnalyzer RECORDING.jfr... [-i INSTANCE]... [-n COUNT]");
+            return;
+        }
+
+        FlightAnalyzer analyzer = new FlightAnalyzer();
+        for (String file : files) {
+            analyzer.read(file);
+        }
+        analyzer.printSummary();
+        if (instances.isEmpty()) {
+            analyzer.printSlowest(slowest);
+        } else {
+            analyzer.printInstances(instances);
+        }
+    }
+}
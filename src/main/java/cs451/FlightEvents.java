@@ -0,0 +1,178 @@
+package cs451;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * Custom JDK Flight Recorder events of the protocol, read back by {@link FlightAnalyzer}.
+ *
+ * Record with e.g. {@code java -XX:StartFlightRecording=filename=p1.jfr ...}; without a recording,
+ * each call below costs an enabled check. To stay on at full load, per-instance events (rounds,
+ * responses, decisions) are only recorded for one instance in {@code -Dcs451.jfr.sample}, which
+ * keeps whole timelines of the sampled instances. Retransmissions, and decisions slower than
+ * {@code -Dcs451.jfr.slowMillis}, are recorded for every instance, as are writer flushes that
+ * exceed the event's JFR threshold (1 ms unless the recording settings say otherwise).
+ */
+final class FlightEvents {
+    private FlightEvents() {
+    }
+
+    static boolean sampled(int id) {
+        return id % Constants.JFR_SAMPLE == 0;
+    }
+
+    static void round(int processId, int id, int round, int setSize, boolean delta) {
+        if (!sampled(id)) {
+            return;
+        }
+        RoundEvent event = new RoundEvent();
+        if (event.isEnabled()) {
+            event.process = processId;
+            event.instance = id;
+            event.round = round;
+            event.setSize = setSize;
+            event.delta = delta;
+            event.commit();
+        }
+    }
+
+    static void response(int processId, int id, int round, int peer, boolean nack) {
+        if (!sampled(id)) {
+            return;
+        }
+        ResponseEvent event = new ResponseEvent();
+        if (event.isEnabled()) {
+            event.process = processId;
+            event.instance = id;
+            event.round = round;
+            event.peer = peer;
+            event.nack = nack;
+            event.commit();
+        }
+    }
+
+    static void retransmit(int processId, int id, int round, int peer, int attempt) {
+        RetransmitEvent event = new RetransmitEvent();
+        if (event.isEnabled()) {
+            event.process = processId;
+            event.instance = id;
+            event.round = round;
+            event.peer = peer;
+            event.attempt = attempt;
+            event.commit();
+        }
+    }
+
+    static void decision(int processId, int id, int rounds, long latencyNanos, int setSize) {
+        if (!sampled(id) && latencyNanos < Constants.JFR_SLOW_MILLIS * 1_000_000) {
+            return;
+        }
+        DecisionEvent event = new DecisionEvent();
+        if (event.isEnabled()) {
+            event.process = processId;
+            event.instance = id;
+            event.rounds = rounds;
+            event.latency = latencyNanos;
+            event.setSize = setSize;
+            event.commit();
+        }
+    }
+
+    @Name("cs451.Round")
+    @Label("Proposal Round")
+    @Category("Lattice Agreement")
+    @Description("A proposer started a round of an instance")
+    @StackTrace(false)
+    static final class RoundEvent extends Event {
+        @Label("Process")
+        int process;
+        @Label("Instance")
+        int instance;
+        @Label("Round")
+        int round;
+        @Label("Set Size")
+        int setSize;
+        @Label("Delta")
+        @Description("Peers that answered the previous round were sent only the values added since")
+        boolean delta;
+    }
+
+    @Name("cs451.Response")
+    @Label("Proposal Response")
+    @Category("Lattice Agreement")
+    @Description("A proposer received an ACK or NACK for its current round")
+    @StackTrace(false)
+    static final class ResponseEvent extends Event {
+        @Label("Process")
+        int process;
+        @Label("Instance")
+        int instance;
+        @Label("Round")
+        int round;
+        @Label("Peer")
+        int peer;
+        @Label("NACK")
+        boolean nack;
+    }
+
+    @Name("cs451.Retransmit")
+    @Label("Retransmission")
+    @Category("Lattice Agreement")
+    @Description("A proposer resent its round to a peer that did not answer in time")
+    @StackTrace(false)
+    static final class RetransmitEvent extends Event {
+        @Label("Process")
+        int process;
+        @Label("Instance")
+        int instance;
+        @Label("Round")
+        int round;
+        @Label("Peer")
+        int peer;
+        @Label("Attempt")
+        int attempt;
+    }
+
+    @Name("cs451.Decision")
+    @Label("Decision")
+    @Category("Lattice Agreement")
+    @Description("A process decided an instance, or learned a set in continuous mode")
+    @StackTrace(false)
+    static final class DecisionEvent extends Event {
+        @Label("Process")
+        int process;
+        @Label("Instance")
+        int instance;
+        @Label("Rounds")
+        int rounds;
+        @Label("Latency")
+        @Timespan(Timespan.NANOSECONDS)
+        long latency;
+        @Label("Set Size")
+        int setSize;
+    }
+
+    /**
+     * Spans one write of the decision log; begin() before the write, commit() after it.
+     */
+    @Name("cs451.LogFlush")
+    @Label("Decision Log Flush")
+    @Category("Lattice Agreement")
+    @Description("The decision log wrote its buffer to the output file")
+    @Threshold("1 ms")
+    @StackTrace(false)
+    static final class LogFlushEvent extends Event {
+        @Label("Bytes")
+        @DataAmount
+        int bytes;
+        @Label("Decided Prefix")
+        int decidedPrefix;
+    }
+}
@@ -1,14 +1,18 @@
 package cs451;
 
+import java.net.InetSocketAddress;
+
 public class Host {
     private final int id;
     private final String address;
     private final int port;
+    private final InetSocketAddress socketAddress; // Resolved once, reused for every send
 
     public Host(int id, String address, int port) {
         this.id = id;
         this.address = address;
         this.port = port;
+        this.socketAddress = new InetSocketAddress(address, port);
     }
 
     public int getId() {
@@ -22,4 +26,8 @@ public class Host {
     public int getPort() {
         return port;
     }
+
+    public InetSocketAddress getSocketAddress() {
+        return socketAddress;
+    }
 }
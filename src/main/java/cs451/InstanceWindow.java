@@ -0,0 +1,101 @@
+package cs451;
+
+/**
+ * Adaptive window of concurrently active lattice-agreement instances.
+ *
+ * Instance {@code id} may only be proposed once every instance below {@code id - size} has been
+ * decided. The size follows an AIMD scheme: it grows by one per decision while in slow start
+ * and by {@code 1/size} afterwards, and is halved on loss (a retransmission after a timeout)
+ * or when the smoothed decision latency rises well above the best latency observed.
+ */
+public class InstanceWindow {
+    private static final double LATENCY_INFLATION = 4.0; // Smoothed/min latency ratio treated as congestion
+
+    private final int minSize;
+    private final int maxSize;
+    private final long[] proposeNanos; // Start time of each active instance, indexed by id % maxSize
+    private double size;
+    private double slowStartThreshold;
+    private int nextId;
+    private long minLatencyNanos = Long.MAX_VALUE;
+    private double smoothedLatencyNanos;
+    private long lastDecreaseNanos;
+
+    public InstanceWindow(int initialSize, int minSize, int maxSize) {
+        this.minSize = Math.max(1, minSize);
+        this.maxSize = Math.max(this.minSize, maxSize);
+        this.size = clamp(initialSize);
+        this.slowStartThreshold = this.maxSize;
+        this.proposeNanos = new long[this.maxSize];
+        this.nextId = 0;
+    }
+
+    /**
+     * Returns the next instance to propose, or -1 if the window is full or the next instance is not
+     * below {@code limit} (the number of instances, or the last one there is room for).
+     */
+    public synchronized int nextToPropose(int decidedPrefix, int limit) {
+        if (nextId >= limit || nextId >= decidedPrefix + (int) size) {
+            return -1;
+        }
+        proposeNanos[nextId % maxSize] = System.nanoTime();
+        return nextId++;
+    }
+
+    /**
+     * Makes {@code id} the next instance to propose, for a process resuming after its decided prefix.
+     */
+    public synchronized void startAt(int id) {
+        nextId = id;
+    }
+
+    /**
+     * Returns the first instance that has not been proposed yet.
+     */
+    public synchronized int getNextId() {
+        return nextId;
+    }
+
+    /**
+     * Records the decision latency of an instance and grows the window.
+     */
+    public synchronized void onDecided(int id) {
+        long now = System.nanoTime();
+        long latency = now - proposeNanos[id % maxSize];
+        minLatencyNanos = Math.min(minLatencyNanos, latency);
+        smoothedLatencyNanos = smoothedLatencyNanos == 0 ? latency : 0.875 * smoothedLatencyNanos + 0.125 * latency;
+
+        if (smoothedLatencyNanos > LATENCY_INFLATION * minLatencyNanos) {
+            decrease(now);
+        } else if (size < slowStartThreshold) {
+            size = clamp(size + 1);
+        } else {
+            size = clamp(size + 1 / size);
+        }
+    }
+
+    /**
+     * Signals that an instance needed a retransmission, which we treat as loss.
+     */
+    public synchronized void onRetransmit() {
+        decrease(System.nanoTime());
+    }
+
+    public synchronized int getSize() {
+        return (int) size;
+    }
+
+    // At most one decrease per smoothed latency, so a burst of losses only halves the window once
+    private void decrease(long now) {
+        if (now - lastDecreaseNanos < smoothedLatencyNanos) {
+            return;
+        }
+        lastDecreaseNanos = now;
+        slowStartThreshold = clamp(size / 2);
+        size = slowStartThreshold;
+    }
+
+    private double clamp(double value) {
+        return Math.max(minSize, Math.min(maxSize, value));
+    }
+}
@@ -0,0 +1,88 @@
+package cs451;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Generalized lattice agreement over a continuous stream of values, for embedding agreement as a
+ * service: {@link #submit} values at any time, and the listener learns ever larger sets that are
+ * comparable across processes and eventually contain every value submitted by a correct process.
+ *
+ * Runs the PROPOSAL/ACK/NACK protocol of the one-shot {@link Process} on a single instance that is
+ * never decided. Each round proposes everything accepted so far, and a quorum of ACKs makes the
+ * round's set learned; the next round starts as soon as the set has grown, whether from local
+ * submissions or from proposals and NACKs of peers. Values submitted while a round is in flight
+ * wait for the next one, so throughput comes from large rounds rather than one instance per value.
+ */
+public class LatticeAgreementEngine {
+    /**
+     * Receives learned sets on the protocol thread; each one is immutable and contains the previous.
+     */
+    public interface LearnListener {
+        void onLearn(LatticeSet learned);
+    }
+
+    private final Process process;
+    private int[] pending = new int[64]; // Guarded by this, submitted values not yet handed to the protocol
+    private int pendingCount;
+    private boolean drainScheduled;
+    private int[] spare = new int[64]; // Protocol thread only, swapped with pending on every drain
+
+    public LatticeAgreementEngine(int processId, Host myHost, List<Host> hosts, ValueDictionary dictionary,
+                                  Transport transport, LearnListener listener) throws IOException {
+        this.process = new Process(processId, myHost, hosts, dictionary, transport, listener);
+    }
+
+    public void start() throws IOException {
+        process.start();
+    }
+
+    /**
+     * Submits a value; many submissions are batched into a single round.
+     */
+    public void submit(int value) {
+        synchronized (this) {
+            if (pendingCount == pending.length) {
+                pending = Arrays.copyOf(pending, pendingCount * 2);
+            }
+            pending[pendingCount++] = value;
+            if (drainScheduled) {
+                return;
+            }
+            drainScheduled = true;
+        }
+        process.execute(this::drain);
+    }
+
+    /**
+     * Sets what runs when the protocol thread stops on an unexpected error, see {@link Process#setFailureListener}.
+     */
+    public void setFailureListener(Consumer<RuntimeException> listener) {
+        process.setFailureListener(listener);
+    }
+
+    public Metrics getMetrics() {
+        return process.getMetrics();
+    }
+
+    public void close() throws IOException {
+        process.shutdown();
+    }
+
+    // Runs on the protocol thread
+    private void drain() {
+        int[] values;
+        int count;
+        synchronized (this) {
+            values = pending;
+            count = pendingCount;
+            pending = spare;
+            pendingCount = 0;
+            drainScheduled = false;
+        }
+        spare = values;
+        process.submit(values, count);
+    }
+}
@@ -0,0 +1,338 @@
+package cs451;
+
+import java.util.Arrays;
+
+/**
+ * A set of proposal values stored over the dense indices of a {@link ValueDictionary}.
+ *
+ * Small sets keep their indices in a sorted int array. Once a bitset would be no larger, or the
+ * set outgrows {@link #SPARSE_LIMIT}, they switch to a bitset sized to their highest index, where
+ * subset tests and joins work a 64-bit word at a time and never allocate once the word array is
+ * large enough. A set with a few values interned late in a long run thus stays a few ints.
+ *
+ * {@link #snapshot()} returns an immutable view sharing the same array; the mutable set copies it
+ * lazily on its next write (copy-on-write), so taking a snapshot is O(1).
+ *
+ * Instances are not thread-safe; snapshots can be shared freely.
+ */
+public final class LatticeSet {
+    // Most indices a sorted-array set holds; inserting shifts the tail, so the array stays short
+    static final int SPARSE_LIMIT = 128;
+
+    private static final long[] NO_WORDS = new long[0];
+    private static final int[] NO_INDICES = new int[0];
+
+    private final ValueDictionary dictionary;
+    private final boolean immutable;
+    private long[] words; // Bitset form, or null while the set is a sorted array
+    private int[] indices = NO_INDICES; // Sorted-array form: the first count entries
+    private int count;
+    private boolean shared; // The array is also referenced by a snapshot
+
+    public LatticeSet(ValueDictionary dictionary) {
+        this(dictionary, null, NO_INDICES, 0, false);
+    }
+
+    private LatticeSet(ValueDictionary dictionary, long[] words, int[] indices, int count, boolean immutable) {
+        this.dictionary = dictionary;
+        this.words = words;
+        this.indices = indices;
+        this.count = count;
+        this.immutable = immutable;
+    }
+
+    public ValueDictionary getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * Adds the value, interning it in the dictionary if needed. Returns true if the set changed.
+     *
+     * @throws IllegalArgumentException if the value is new and the dictionary is full
+     */
+    public boolean add(int value) {
+        return addIndex(dictionary.intern(value));
+    }
+
+    /**
+     * Adds every value of the array. Returns true if the set changed.
+     */
+    public boolean addAll(int[] values) {
+        boolean changed = false;
+        for (int value : values) {
+            changed |= add(value);
+        }
+        return changed;
+    }
+
+    public boolean addIndex(int index) {
+        if (words != null) {
+            int word = index >>> 6;
+            long bit = 1L << index;
+            if (word < words.length && (words[word] & bit) != 0) {
+                return false;
+            }
+            prepareWords(word + 1);
+            words[word] |= bit;
+            return true;
+        }
+        int position = Arrays.binarySearch(indices, 0, count, index);
+        if (position >= 0) {
+            return false;
+        }
+        int highest = Math.max(index, count > 0 ? indices[count - 1] : 0);
+        if (count == SPARSE_LIMIT || bitsetFits(highest, count + 1)) {
+            toWords(highest);
+            return addIndex(index);
+        }
+        position = -position - 1;
+        prepareIndices(count + 1);
+        System.arraycopy(indices, position, indices, position + 1, count - position);
+        indices[position] = index;
+        count++;
+        return true;
+    }
+
+    public boolean contains(int value) {
+        int index = dictionary.indexOf(value);
+        return index >= 0 && containsIndex(index);
+    }
+
+    public boolean containsIndex(int index) {
+        if (words == null) {
+            return Arrays.binarySearch(indices, 0, count, index) >= 0;
+        }
+        int word = index >>> 6;
+        return word < words.length && (words[word] & (1L << index)) != 0;
+    }
+
+    /**
+     * Returns true if every value of {@code other} is in this set.
+     */
+    public boolean containsAll(LatticeSet other) {
+        if (other.words == null) {
+            for (int i = 0; i < other.count; i++) {
+                if (!containsIndex(other.indices[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        long[] theirs = other.words;
+        if (words == null) {
+            for (int i = other.nextIndex(0); i >= 0; i = other.nextIndex(i + 1)) {
+                if (!containsIndex(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        long[] mine = words;
+        for (int i = 0; i < theirs.length; i++) {
+            long word = i < mine.length ? mine[i] : 0L;
+            if ((theirs[i] & ~word) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean isSubsetOf(LatticeSet other) {
+        return other.containsAll(this);
+    }
+
+    /**
+     * Adds every value of {@code other} to this set (lattice join). Returns true if the set changed.
+     */
+    public boolean join(LatticeSet other) {
+        if (containsAll(other)) {
+            return false;
+        }
+        if (other.words == null) {
+            for (int i = 0; i < other.count; i++) {
+                addIndex(other.indices[i]);
+            }
+            return true;
+        }
+        long[] theirs = other.words;
+        if (words == null) {
+            toWords(Math.max((theirs.length << 6) - 1, count > 0 ? indices[count - 1] : 0));
+        }
+        prepareWords(theirs.length);
+        for (int i = 0; i < theirs.length; i++) {
+            words[i] |= theirs[i];
+        }
+        return true;
+    }
+
+    public void clear() {
+        if (shared) {
+            words = null;
+            indices = NO_INDICES;
+            count = 0;
+            shared = false;
+            return;
+        }
+        checkMutable();
+        if (words != null) {
+            Arrays.fill(words, 0L); // Keeps its size: a reused set fills up again
+        }
+        count = 0;
+    }
+
+    public int size() {
+        if (words == null) {
+            return count;
+        }
+        int size = 0;
+        for (long word : words) {
+            size += Long.bitCount(word);
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        if (words == null) {
+            return count == 0;
+        }
+        for (long word : words) {
+            if (word != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the first dictionary index in the set that is >= {@code from}, or -1.
+     */
+    public int nextIndex(int from) {
+        if (words == null) {
+            int position = Arrays.binarySearch(indices, 0, count, from);
+            if (position < 0) {
+                position = -position - 1;
+            }
+            return position < count ? indices[position] : -1;
+        }
+        int word = from >>> 6;
+        if (word >= words.length) {
+            return -1;
+        }
+        long bits = words[word] & (-1L << from);
+        while (true) {
+            if (bits != 0) {
+                return (word << 6) + Long.numberOfTrailingZeros(bits);
+            }
+            if (++word == words.length) {
+                return -1;
+            }
+            bits = words[word];
+        }
+    }
+
+    /**
+     * Returns an immutable snapshot of the current contents in O(1).
+     */
+    public LatticeSet snapshot() {
+        if (immutable) {
+            return this;
+        }
+        shared = true;
+        return new LatticeSet(dictionary, words, indices, count, true);
+    }
+
+    /**
+     * Returns a new mutable set with the same contents.
+     */
+    public LatticeSet copy() {
+        if (words == null) {
+            return new LatticeSet(dictionary, null, Arrays.copyOf(indices, count), count, false);
+        }
+        return new LatticeSet(dictionary, words.clone(), NO_INDICES, 0, false);
+    }
+
+    /**
+     * Returns the values in ascending order, as sent on the wire.
+     */
+    public int[] toSortedValues() {
+        int[] values = new int[size()];
+        int n = 0;
+        for (int i = nextIndex(0); i >= 0; i = nextIndex(i + 1)) {
+            values[n++] = dictionary.valueAt(i);
+        }
+        Arrays.sort(values);
+        return values;
+    }
+
+    /**
+     * Returns the values of this set that are not in {@code other}, in ascending order.
+     */
+    public int[] toSortedValuesExcept(LatticeSet other) {
+        int size = 0;
+        for (int i = nextIndex(0); i >= 0; i = nextIndex(i + 1)) {
+            if (!other.containsIndex(i)) {
+                size++;
+            }
+        }
+        int[] values = new int[size];
+        int n = 0;
+        for (int i = nextIndex(0); i >= 0; i = nextIndex(i + 1)) {
+            if (!other.containsIndex(i)) {
+                values[n++] = dictionary.valueAt(i);
+            }
+        }
+        Arrays.sort(values);
+        return values;
+    }
+
+    // True if a bitset up to the index takes no more memory than count sorted indices
+    private static boolean bitsetFits(int highestIndex, int count) {
+        return ((highestIndex >>> 6) + 1) * 2 <= count;
+    }
+
+    // Switches to the bitset form, with room for indices up to highestIndex
+    private void toWords(int highestIndex) {
+        checkMutable();
+        long[] bits = new long[(highestIndex >>> 6) + 1];
+        for (int i = 0; i < count; i++) {
+            bits[indices[i] >>> 6] |= 1L << indices[i];
+        }
+        words = bits;
+        indices = NO_INDICES;
+        count = 0;
+        shared = false;
+    }
+
+    // Ensures the words are private to this set and hold at least wordCount words; grows by half
+    // again to amortize, but never past the dictionary, which bounds every index
+    private void prepareWords(int wordCount) {
+        checkMutable();
+        if (shared || words.length < wordCount) {
+            int grown = words.length < wordCount ? words.length + (words.length >> 1) : words.length;
+            int dictionaryWords = (dictionary.size() + 63) >>> 6;
+            words = Arrays.copyOf(words, Math.max(wordCount, Math.min(grown, dictionaryWords)));
+            shared = false;
+        }
+    }
+
+    // Same for the sorted indices
+    private void prepareIndices(int size) {
+        checkMutable();
+        if (shared || indices.length < size) {
+            int grown = indices.length < size ? Math.max(4, indices.length * 2) : indices.length;
+            indices = Arrays.copyOf(indices, Math.min(Math.max(size, grown), SPARSE_LIMIT));
+            shared = false;
+        }
+    }
+
+    private void checkMutable() {
+        if (immutable) {
+            throw new UnsupportedOperationException("LatticeSet snapshot is immutable");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(toSortedValues());
+    }
+}
@@ -0,0 +1,134 @@
+package cs451;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Behaviour of one direction of a simulated link: loss, one-way latency, reordering and bandwidth.
+ *
+ * Latency is {@code latencyMicros} plus a jitter of mean {@code jitterMicros} drawn from the
+ * distribution; a reordered datagram is held back by an extra {@code reorderDelayMicros}. With a
+ * bandwidth cap, datagrams are serialized one after the other and tail-dropped once the link's
+ * backlog exceeds {@code queueMicros}.
+ */
+public final class LinkProfile {
+    public enum Distribution {
+        CONSTANT,
+        UNIFORM, // Jitter uniform in [0, 2 * jitter]
+        EXPONENTIAL // Jitter exponential with mean jitter, a long tail of late datagrams
+    }
+
+    private final double lossRate;
+    private final long latencyMicros;
+    private final long jitterMicros;
+    private final Distribution distribution;
+    private final double reorderRate;
+    private final long reorderDelayMicros;
+    private final long bandwidthBytesPerSecond; // 0 for unlimited
+    private final long queueMicros;
+
+    public LinkProfile(double lossRate, long latencyMicros, long jitterMicros, Distribution distribution,
+                       double reorderRate, long reorderDelayMicros, long bandwidthBytesPerSecond, long queueMicros) {
+        if (lossRate < 0 || lossRate > 1 || reorderRate < 0 || reorderRate > 1) {
+            throw new IllegalArgumentException("Loss and reorder rates must be in [0, 1]");
+        }
+        if (latencyMicros < 0 || jitterMicros < 0 || reorderDelayMicros < 0 || bandwidthBytesPerSecond < 0 || queueMicros < 0) {
+            throw new IllegalArgumentException("Latencies, bandwidth and queue length cannot be negative");
+        }
+        this.lossRate = lossRate;
+        this.latencyMicros = latencyMicros;
+        this.jitterMicros = jitterMicros;
+        this.distribution = distribution;
+        this.reorderRate = reorderRate;
+        this.reorderDelayMicros = reorderDelayMicros;
+        this.bandwidthBytesPerSecond = bandwidthBytesPerSecond;
+        this.queueMicros = queueMicros;
+    }
+
+    /**
+     * Returns the profile described by the -Dcs451.sim.* properties, see {@link Constants}.
+     */
+    public static LinkProfile fromProperties() {
+        return new LinkProfile(Constants.SIM_LOSS, Constants.SIM_LATENCY_MICROS, Constants.SIM_JITTER_MICROS,
+                Distribution.valueOf(Constants.SIM_DISTRIBUTION.toUpperCase(Locale.ROOT)), Constants.SIM_REORDER,
+                Constants.SIM_REORDER_DELAY_MICROS, Constants.SIM_BANDWIDTH, Constants.SIM_QUEUE_MICROS);
+    }
+
+    /**
+     * Returns a copy of this profile with the settings of a spec such as
+     * {@code "loss=0.1,latencyMicros=500,distribution=exponential"} applied on top.
+     */
+    public LinkProfile with(String spec) {
+        double loss = lossRate;
+        long latency = latencyMicros;
+        long jitter = jitterMicros;
+        Distribution dist = distribution;
+        double reorder = reorderRate;
+        long reorderDelay = reorderDelayMicros;
+        long bandwidth = bandwidthBytesPerSecond;
+        long queue = queueMicros;
+        for (String setting : spec.split(",")) {
+            String[] parts = setting.trim().split("=", 2);
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Invalid link setting '" + setting + "'");
+            }
+            String value = parts[1].trim();
+            switch (parts[0].trim()) {
+                case "loss": loss = Double.parseDouble(value); break;
+                case "latencyMicros": latency = Long.parseLong(value); break;
+                case "jitterMicros": jitter = Long.parseLong(value); break;
+                case "distribution": dist = Distribution.valueOf(value.toUpperCase(Locale.ROOT)); break;
+                case "reorder": reorder = Double.parseDouble(value); break;
+                case "reorderDelayMicros": reorderDelay = Long.parseLong(value); break;
+                case "bandwidthBytesPerSec": bandwidth = Long.parseLong(value); break;
+                case "queueMicros": queue = Long.parseLong(value); break;
+                default: throw new IllegalArgumentException("Unknown link setting '" + parts[0] + "'");
+            }
+        }
+        return new LinkProfile(loss, latency, jitter, dist, reorder, reorderDelay, bandwidth, queue);
+    }
+
+    boolean drops(Random random) {
+        return lossRate > 0 && random.nextDouble() < lossRate;
+    }
+
+    /**
+     * Draws the time a datagram spends on the link once it has been serialized.
+     */
+    long sampleDelayNanos(Random random) {
+        double jitter;
+        switch (distribution) {
+            case UNIFORM:
+                jitter = 2 * jitterMicros * random.nextDouble();
+                break;
+            case EXPONENTIAL:
+                jitter = -jitterMicros * Math.log(1 - random.nextDouble());
+                break;
+            default:
+                jitter = 0;
+        }
+        long delay = latencyMicros * 1000 + (long) (jitter * 1000);
+        if (reorderRate > 0 && random.nextDouble() < reorderRate) {
+            delay += reorderDelayMicros * 1000;
+        }
+        return delay;
+    }
+
+    /**
+     * Returns the time needed to put {@code bytes} on the link, 0 without a bandwidth cap.
+     */
+    long transmissionNanos(int bytes) {
+        return bandwidthBytesPerSecond == 0 ? 0 : bytes * 1_000_000_000L / bandwidthBytesPerSecond;
+    }
+
+    long getQueueNanos() {
+        return queueMicros * 1000;
+    }
+
+    @Override
+    public String toString() {
+        return "LinkProfile{loss=" + lossRate + ", latencyMicros=" + latencyMicros + ", jitterMicros=" + jitterMicros
+                + ", distribution=" + distribution + ", reorder=" + reorderRate + ", reorderDelayMicros=" + reorderDelayMicros
+                + ", bandwidthBytesPerSec=" + bandwidthBytesPerSecond + ", queueMicros=" + queueMicros + '}';
+    }
+}
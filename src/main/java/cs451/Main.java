@@ -28,7 +28,17 @@ public class Main {
         Host myHost = hosts.get(id - 1); // IDs are 1-based
 
         // Initialize and start the process
-        Process process = new Process(id, totalProcesses, myHost, hosts, outputFile, configData.getProposals());
+        Process process = new Process(id, totalProcesses, myHost, hosts, outputFile,
+                configData.getDictionary(), configData.getProposals(), new UdpTransport(myHost));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                process.shutdown(); // Writes out the decisions still buffered by the decision log
+            } catch (IOException e) {
+                System.err.println("Error during shutdown: " + e.getMessage());
+            }
+        }));
+        // A failed shard stalls its instances forever: exit instead, which a durable run recovers from
+        process.setFailureListener(e -> System.exit(1));
         process.start();
     }
 
@@ -45,23 +55,12 @@ public class Main {
         return hosts;
     }
 
+    // Only the header is read here, the process streams the proposals as instances start
     private static ConfigData loadConfig(String configFile) throws IOException {
-        List<String> lines = Files.readAllLines(Paths.get(configFile));
-        String[] firstLine = lines.get(0).split(" ");
-        int proposalsPerProcess = Integer.parseInt(firstLine[0]);
-        int maxElementsPerProposal = Integer.parseInt(firstLine[1]);
-        int maxDistinctElements = Integer.parseInt(firstLine[2]);
-
-        List<Set<Integer>> proposals = new ArrayList<>();
-        for (int i = 1; i <= proposalsPerProcess; i++) {
-            String[] proposalLine = lines.get(i).split(" ");
-            Set<Integer> proposal = new HashSet<>();
-            for (String element : proposalLine) {
-                proposal.add(Integer.parseInt(element));
-            }
-            proposals.add(proposal);
-        }
-
-        return new ConfigData(proposalsPerProcess, maxElementsPerProposal, maxDistinctElements, proposals);
+        ConfigReader reader = new ConfigReader(configFile);
+        int maxDistinctElements = reader.getMaxDistinctElements();
+        ValueDictionary dictionary = new ValueDictionary(maxDistinctElements, reader.getMaxDictionarySize());
+        return new ConfigData(reader.getProposalsPerProcess(), reader.getMaxElementsPerProposal(), maxDistinctElements,
+                dictionary, reader);
     }
 }
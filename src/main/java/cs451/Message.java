@@ -1,23 +1,27 @@
 package cs451;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 public class Message implements Serializable {
     public enum MessageType {
         PROPOSAL,
         ACK,
-        NACK
+        NACK,
+        PROPOSAL_DELTA, // Values added since the round baseProposalNb the receiver already has
+        DECIDED_PREFIX // Sender decided every instance below proposalId; not tied to an instance
     }
 
     private final MessageType type;
     private final int senderId;
     private final int proposalId;
     private final int proposalNb;
-    private final Set<Integer> proposalSet;
+    private final int baseProposalNb; // Only for PROPOSAL_DELTA, 0 otherwise
+    private final int[] proposalValues; // sorted, distinct; null for ACK and DECIDED_PREFIX
 
     // Constructor
-    private Message(MessageType type, int senderId, int proposalId, int proposalNb, Set<Integer> proposalSet) {
+    private Message(MessageType type, int senderId, int proposalId, int proposalNb, int baseProposalNb, int[] proposalValues) {
         if (type == null) {
             throw new IllegalArgumentException("Message type cannot be null");
         }
@@ -30,28 +34,93 @@ public class Message implements Serializable {
         if (proposalNb < 0) {
             throw new IllegalArgumentException("Proposal number cannot be negative");
         }
-        if ((type == MessageType.PROPOSAL || type == MessageType.NACK) && (proposalSet == null || proposalSet.isEmpty())) {
+        if (type != MessageType.ACK && type != MessageType.DECIDED_PREFIX && (proposalValues == null || proposalValues.length == 0)) {
             throw new IllegalArgumentException("Proposal set cannot be null or empty for PROPOSAL or NACK messages");
         }
+        if (type == MessageType.PROPOSAL_DELTA ? baseProposalNb <= 0 || baseProposalNb >= proposalNb : baseProposalNb != 0) {
+            throw new IllegalArgumentException("Base proposal number must precede the proposal number of a PROPOSAL_DELTA");
+        }
 
         this.type = type;
         this.senderId = senderId;
         this.proposalId = proposalId;
         this.proposalNb = proposalNb;
-        this.proposalSet = proposalSet != null ? new HashSet<>(proposalSet) : null;
+        this.baseProposalNb = baseProposalNb;
+        this.proposalValues = proposalValues;
     }
 
     // Static factory methods with validation
     public static Message createProposal(int senderId, int proposalId, Set<Integer> proposalSet, int proposalNb) {
-        return new Message(MessageType.PROPOSAL, senderId, proposalId, proposalNb, proposalSet);
+        return new Message(MessageType.PROPOSAL, senderId, proposalId, proposalNb, 0, toSortedArray(proposalSet));
+    }
+
+    public static Message createProposal(int senderId, int proposalId, LatticeSet proposalSet, int proposalNb) {
+        return new Message(MessageType.PROPOSAL, senderId, proposalId, proposalNb, 0, proposalSet.toSortedValues());
+    }
+
+    /**
+     * Creates a proposal carrying only the values of {@code proposalSet} missing from {@code baseSet},
+     * the set sent in round {@code baseProposalNb}. Returns null if nothing was added since.
+     */
+    public static Message createProposalDelta(int senderId, int proposalId, LatticeSet proposalSet, int proposalNb,
+                                              LatticeSet baseSet, int baseProposalNb) {
+        int[] added = proposalSet.toSortedValuesExcept(baseSet);
+        if (added.length == 0) {
+            return null;
+        }
+        return new Message(MessageType.PROPOSAL_DELTA, senderId, proposalId, proposalNb, baseProposalNb, added);
     }
 
     public static Message createAck(int senderId, int proposalId, int proposalNb) {
-        return new Message(MessageType.ACK, senderId, proposalId, proposalNb, null);
+        return new Message(MessageType.ACK, senderId, proposalId, proposalNb, 0, null);
+    }
+
+    /**
+     * Announces that the sender decided and output every instance below {@code decidedPrefix}.
+     */
+    public static Message createDecidedPrefix(int senderId, int decidedPrefix) {
+        return new Message(MessageType.DECIDED_PREFIX, senderId, decidedPrefix, 0, 0, null);
     }
 
     public static Message createNoAck(int senderId, int proposalId, int proposalNb, Set<Integer> proposalSet) {
-        return new Message(MessageType.NACK, senderId, proposalId, proposalNb, proposalSet);
+        return new Message(MessageType.NACK, senderId, proposalId, proposalNb, 0, toSortedArray(proposalSet));
+    }
+
+    /**
+     * Creates a NACK carrying only the values of {@code proposalSet} the proposer did not send,
+     * {@code receivedSet} being the set it proposed; never empty since the acceptor refused it.
+     */
+    public static Message createNoAck(int senderId, int proposalId, int proposalNb, LatticeSet proposalSet, LatticeSet receivedSet) {
+        return new Message(MessageType.NACK, senderId, proposalId, proposalNb, 0, proposalSet.toSortedValuesExcept(receivedSet));
+    }
+
+    // Used by MessageCodec, values are already sorted and distinct
+    static Message fromWire(MessageType type, int senderId, int proposalId, int proposalNb, int baseProposalNb, int[] proposalValues) {
+        return new Message(type, senderId, proposalId, proposalNb, baseProposalNb, proposalValues);
+    }
+
+    private static int[] toSortedArray(Set<Integer> proposalSet) {
+        if (proposalSet == null) {
+            return null;
+        }
+        int[] values = new int[proposalSet.size()];
+        int i = 0;
+        for (int value : proposalSet) {
+            values[i++] = value;
+        }
+        Arrays.sort(values);
+        return values;
+    }
+
+    static int[] sortDistinct(int[] values) {
+        Arrays.sort(values);
+        int n = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (i == 0 || values[i] != values[n - 1]) {
+                values[n++] = values[i];
+            }
+        }
+        return n == values.length ? values : Arrays.copyOf(values, n);
     }
 
     // Getters
@@ -71,52 +140,67 @@ public class Message implements Serializable {
         return proposalNb;
     }
 
+    public int getBaseProposalNb() {
+        return baseProposalNb;
+    }
+
     public Set<Integer> getProposalSet() {
-        return proposalSet != null ? new HashSet<>(proposalSet) : null;
-    }
-
-    // Serialization to byte array (custom serialization for efficiency)
-    public byte[] toBytes() throws IOException {
-        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-        try (DataOutputStream dataStream = new DataOutputStream(byteStream)) {
-            dataStream.writeInt(type.ordinal()); // Serialize MessageType as an integer
-            dataStream.writeInt(senderId);
-            dataStream.writeInt(proposalId);
-            dataStream.writeInt(proposalNb);
-
-            // Serialize proposalSet
-            if (proposalSet != null) {
-                dataStream.writeInt(proposalSet.size());
-                for (int value : proposalSet) {
-                    dataStream.writeInt(value);
-                }
-            } else {
-                dataStream.writeInt(0); // Indicate empty set
-            }
+        int[] values = getProposalValues();
+        if (values == null) {
+            return null;
         }
-        return byteStream.toByteArray();
+        Set<Integer> proposalSet = new HashSet<>();
+        for (int value : values) {
+            proposalSet.add(value);
+        }
+        return proposalSet;
     }
 
-    // Deserialization from byte array (custom deserialization for efficiency)
-    public static Message fromBytes(byte[] bytes) throws IOException {
-        ByteArrayInputStream byteStream = new ByteArrayInputStream(bytes);
-        try (DataInputStream dataStream = new DataInputStream(byteStream)) {
-            MessageType type = MessageType.values()[dataStream.readInt()];
-            int senderId = dataStream.readInt();
-            int proposalId = dataStream.readInt();
-            int proposalNb = dataStream.readInt();
-
-            // Deserialize proposalSet
-            int setSize = dataStream.readInt();
-            Set<Integer> proposalSet = new HashSet<>();
-            for (int i = 0; i < setSize; i++) {
-                proposalSet.add(dataStream.readInt());
-            }
+    /**
+     * Returns the proposal set as a sorted array without copying; callers must not modify it.
+     */
+    public int[] getProposalValues() {
+        return proposalValues;
+    }
 
-            return new Message(type, senderId, proposalId, proposalNb, proposalSet.isEmpty() ? null : proposalSet);
+    /**
+     * Returns true if the (sorted) proposal set contains the given value.
+     */
+    public boolean containsValue(int value) {
+        int[] values = getProposalValues();
+        return values != null && Arrays.binarySearch(values, value) >= 0;
+    }
+
+    /**
+     * Clears {@code target} and fills it with the proposal set, without allocating once the
+     * target has grown large enough.
+     */
+    public void readProposalSet(LatticeSet target) {
+        target.clear();
+        addProposalSetTo(target);
+    }
+
+    /**
+     * Adds the proposal set to {@code target}.
+     */
+    public void addProposalSetTo(LatticeSet target) {
+        if (proposalValues != null) {
+            target.addAll(proposalValues);
         }
     }
 
+    // Serialization to byte array using the compact wire format, as a datagram of its own
+    public byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(1 + MessageCodec.varIntSize(senderId) + MessageCodec.encodedSize(this));
+        MessageCodec.encode(this, buffer);
+        return buffer.array();
+    }
+
+    // Deserialization from byte array, accepts both the compact and the legacy format
+    public static Message fromBytes(byte[] bytes) throws IOException {
+        return MessageCodec.decode(ByteBuffer.wrap(bytes));
+    }
+
     @Override
     public String toString() {
         return "Message{" +
@@ -124,7 +208,8 @@ public class Message implements Serializable {
                 ", senderId=" + senderId +
                 ", proposalId=" + proposalId +
                 ", proposalNb=" + proposalNb +
-                ", proposalSet=" + proposalSet +
+                (type == MessageType.PROPOSAL_DELTA ? ", baseProposalNb=" + baseProposalNb : "") +
+                ", proposalSet=" + Arrays.toString(getProposalValues()) +
                 '}';
     }
 }
@@ -0,0 +1,762 @@
+package cs451;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Compact binary wire format for {@link Message}.
+ *
+ * A datagram is [version:1][senderId:varint] followed by one or more records, each laid out as
+ * [type:1][senderId:varint][proposalId:varint][proposalNb:varint]([baseProposalNb:varint])[setSize:varint]([encoding:1][set...])
+ * where baseProposalNb is only present for PROPOSAL_DELTA and the set only for a non-empty one.
+ * A {@link #CUMULATIVE_ACK} record acknowledges many instances at once:
+ * [CUMULATIVE_ACK:1][senderId:varint][count:varint] then count x [proposalId delta:varint][proposalNb:varint],
+ * sorted by proposalId; it decodes into one ACK message per entry. An empty one, with count 0, is
+ * the heartbeat sent to peers we have nothing else for (see {@link FailureDetector}).
+ * Records are self-delimiting, so a receiver simply decodes until the datagram is exhausted.
+ * The datagram's senderId names the process that sent it, which differs from the senderId of a
+ * record relayed for another process; version 3 datagrams, which lacked it, are still decoded.
+ *
+ * The proposal set is written sorted, its first value zig-zag encoded, followed by whichever of
+ * three encodings is the smallest for this set: {@link #SET_DELTAS} writes every following value
+ * as the (unsigned) delta to its predecessor, {@link #SET_BITMAP} the byte count and a bitmap of
+ * the values from the first one on, {@link #SET_RUNS} the number of runs of consecutive values and
+ * for each its gap to the previous run (not for the first) and its length minus one, all varints.
+ * Version 2 datagrams, which always used deltas and had no encoding byte, are still decoded.
+ *
+ * A record too large for one datagram travels as {@link #FRAGMENT} records:
+ * [FRAGMENT:1][senderId:varint][seq:varint][proposalId:varint][nack:1][index:varint][count:varint][totalLength:varint][bytes...]
+ * where every fragment but the last carries ceil(totalLength / count) bytes of the encoded record
+ * and seq numbers the fragmented records of one sender. The receiver asks for the fragments it
+ * lacks with [FRAGMENT_REQUEST:1][senderId:varint][seq:varint][count:varint][index deltas:varint...].
+ * Both are handed to a {@link FragmentSink} rather than decoded into messages.
+ *
+ * A {@link #RELAY_ACK} record carries the ACKs of a subtree of a {@link RelayTree} towards the
+ * origin of the round: [RELAY_ACK:1][senderId:varint][origin:varint][proposalId:varint]
+ * [proposalNb:varint][count:varint][acker deltas:varint...], the ackers sorted. It goes to a
+ * {@link RelaySink} rather than being decoded into messages.
+ *
+ * Decoding is header first: a {@link RecordFilter} sees each record's type, sender, instance and
+ * round before its set is read, and a rejected record is skipped by the length of its bitmap or
+ * the continuation bits of its varints, without being validated. An accepted set is decoded in a
+ * single pass that also validates it, into the message's sorted values, so stale messages are
+ * never decoded.
+ *
+ * The legacy encoding written by {@code DataOutputStream} always starts with the 4-byte type
+ * ordinal, so its first byte is 0; the version byte of the compact format is never 0 which
+ * lets {@link #decode(ByteBuffer)} tell both encodings apart.
+ */
+public final class MessageCodec {
+    public static final byte LEGACY_VERSION = 0;
+    public static final byte DELTA_VERSION = 2; // Sets always delta-encoded, without an encoding byte
+    public static final byte RECORDS_VERSION = 3; // No datagram sender, only the records' ones
+    public static final byte VERSION = 4;
+    public static final byte CUMULATIVE_ACK = 0x10; // Record types, distinct from every MessageType ordinal
+    public static final byte FRAGMENT = 0x11;
+    public static final byte FRAGMENT_REQUEST = 0x12;
+    public static final byte RELAY_ACK = 0x13;
+    public static final byte SET_DELTAS = 0; // Set encodings
+    public static final byte SET_BITMAP = 1;
+    public static final byte SET_RUNS = 2;
+    public static final int FRAGMENT_HEADER_MAX_BYTES = 32; // Fragment record without its bytes, at most
+    private static final int MAX_DECODED_VALUES = 1 << 24; // Bitmaps and runs describe large sets in few bytes
+
+    private static final Message.MessageType[] TYPES = Message.MessageType.values();
+
+    private MessageCodec() {
+    }
+
+    /**
+     * Receives the fragment records of a datagram; see {@link #decodeAll(ByteBuffer, List, FragmentSink)}.
+     */
+    public interface FragmentSink {
+        /**
+         * Takes one fragment, whose bytes are only valid during the call; a completed record is
+         * decoded into {@code out}.
+         */
+        void onFragment(int senderId, int seq, int proposalId, boolean nack, int index, int count, int totalLength,
+                        ByteBuffer bytes, List<Message> out) throws IOException;
+
+        /**
+         * Takes a request for the first {@code count} fragments listed in {@code indices}.
+         */
+        void onFragmentRequest(int senderId, int seq, int[] indices, int count);
+    }
+
+    /**
+     * Receives the relayed ACK records of a datagram; see {@link #decodeAll(ByteBuffer, List, FragmentSink, RecordFilter, RelaySink)}.
+     */
+    public interface RelaySink {
+        /**
+         * Takes the first {@code count} ackers of {@code ackers}, which are only valid during the call.
+         */
+        void onRelayAck(int senderId, int origin, int proposalId, int proposalNb, int[] ackers, int count);
+    }
+
+    /**
+     * Decides from a record's header whether the receiver wants it; see {@link #decodeAll(ByteBuffer, List, FragmentSink, RecordFilter)}.
+     */
+    public interface RecordFilter {
+        boolean accept(Message.MessageType type, int senderId, int proposalId, int proposalNb);
+    }
+
+    /**
+     * Encodes the message as a single-record datagram from its sender at the buffer's current position.
+     * Throws IllegalArgumentException if the message does not fit in the remaining space.
+     */
+    public static void encode(Message message, ByteBuffer out) {
+        try {
+            putHeader(out, message.getSenderId());
+        } catch (BufferOverflowException e) {
+            throw new IllegalArgumentException("Message does not fit in " + out.capacity() + " bytes");
+        }
+        encodeRecord(message, out);
+    }
+
+    /**
+     * Starts a datagram sent by {@code senderId}, records to be appended after it.
+     */
+    public static void putHeader(ByteBuffer out, int senderId) {
+        out.put(VERSION);
+        putVarInt(out, senderId);
+    }
+
+    /**
+     * Appends one record (without the datagram version byte) at the buffer's current position.
+     * Throws IllegalArgumentException if the message does not fit in the remaining space.
+     */
+    public static void encodeRecord(Message message, ByteBuffer out) {
+        try {
+            out.put((byte) message.getType().ordinal());
+            putVarInt(out, message.getSenderId());
+            putVarInt(out, message.getProposalId());
+            putVarInt(out, message.getProposalNb());
+            if (message.getType() == Message.MessageType.PROPOSAL_DELTA) {
+                putVarInt(out, message.getBaseProposalNb());
+            }
+
+            int[] values = message.getProposalValues();
+            if (values == null) {
+                putVarInt(out, 0);
+                return;
+            }
+            putVarInt(out, values.length);
+            putSet(out, values, (byte) (chooseSetEncoding(values) >>> 32));
+        } catch (BufferOverflowException e) {
+            throw new IllegalArgumentException("Message does not fit in " + out.capacity() + " bytes");
+        }
+    }
+
+    /**
+     * Returns the number of bytes {@link #encodeRecord(Message, ByteBuffer)} writes for the message.
+     */
+    public static int encodedSize(Message message) {
+        int size = 1 + varIntSize(message.getSenderId()) + varIntSize(message.getProposalId())
+                + varIntSize(message.getProposalNb());
+        if (message.getType() == Message.MessageType.PROPOSAL_DELTA) {
+            size += varIntSize(message.getBaseProposalNb());
+        }
+        int[] values = message.getProposalValues();
+        if (values == null) {
+            return size + 1;
+        }
+        return size + varIntSize(values.length) + (int) chooseSetEncoding(values);
+    }
+
+    // Returns the smallest encoding of the sorted, distinct, non-empty values in the high half and
+    // its size in bytes, encoding byte included, in the low half
+    private static long chooseSetEncoding(int[] values) {
+        int deltas = 0;
+        int runs = 0;
+        int runCount = 1;
+        int runStart = 0;
+        for (int i = 1; i < values.length; i++) {
+            int delta = values[i] - values[i - 1]; // Unsigned, values are sorted and distinct
+            deltas += varIntSize(delta);
+            if (delta != 1) {
+                runs += (runStart > 0 ? varIntSize(values[runStart] - values[runStart - 1]) : 0)
+                        + varIntSize(values[i - 1] - values[runStart]);
+                runStart = i;
+                runCount++;
+            }
+        }
+        runs += (runStart > 0 ? varIntSize(values[runStart] - values[runStart - 1]) : 0)
+                + varIntSize(values[values.length - 1] - values[runStart]) + varIntSize(runCount);
+        long span = (long) values[values.length - 1] - values[0] + 1;
+        long bitmapBytes = (span + 7) / 8;
+        long bitmap = bitmapBytes <= Integer.MAX_VALUE ? varIntSize((int) bitmapBytes) + bitmapBytes : Long.MAX_VALUE;
+
+        byte encoding = SET_DELTAS;
+        long size = deltas;
+        if (bitmap < size) {
+            encoding = SET_BITMAP;
+            size = bitmap;
+        }
+        if (runs < size) {
+            encoding = SET_RUNS;
+            size = runs;
+        }
+        return (long) encoding << 32 | (1 + varIntSize(zigZag(values[0])) + size);
+    }
+
+    private static void putSet(ByteBuffer out, int[] values, byte encoding) {
+        out.put(encoding);
+        putVarInt(out, zigZag(values[0]));
+        if (encoding == SET_DELTAS) {
+            for (int i = 1; i < values.length; i++) {
+                putVarInt(out, values[i] - values[i - 1]); // unsigned delta, values are sorted and distinct
+            }
+        } else if (encoding == SET_BITMAP) {
+            int bytes = (int) ((((long) values[values.length - 1] - values[0] + 1) + 7) / 8);
+            putVarInt(out, bytes);
+            int start = out.position();
+            if (out.remaining() < bytes) {
+                throw new BufferOverflowException();
+            }
+            for (int i = start; i < start + bytes; i++) {
+                out.put(i, (byte) 0);
+            }
+            for (int value : values) {
+                int bit = value - values[0];
+                out.put(start + (bit >>> 3), (byte) (out.get(start + (bit >>> 3)) | 1 << (bit & 7)));
+            }
+            out.position(start + bytes);
+        } else {
+            int runCount = 1;
+            for (int i = 1; i < values.length; i++) {
+                if (values[i] - values[i - 1] != 1) {
+                    runCount++;
+                }
+            }
+            putVarInt(out, runCount);
+            int runStart = 0;
+            for (int i = 1; i <= values.length; i++) {
+                if (i == values.length || values[i] - values[i - 1] != 1) {
+                    if (runStart > 0) {
+                        putVarInt(out, values[runStart] - values[runStart - 1]);
+                    }
+                    putVarInt(out, values[i - 1] - values[runStart]);
+                    runStart = i;
+                }
+            }
+        }
+    }
+
+    private static int zigZag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    /**
+     * Appends one fragment of an encoded record: bytes {@code [index * chunk, min((index + 1) * chunk, length))}
+     * where chunk is {@code ceil(record.length / count)}.
+     */
+    public static void putFragment(ByteBuffer out, int senderId, int seq, int proposalId, boolean nack,
+                                   int index, int count, byte[] record) {
+        int chunk = fragmentChunk(record.length, count);
+        int offset = index * chunk;
+        out.put(FRAGMENT);
+        putVarInt(out, senderId);
+        putVarInt(out, seq);
+        putVarInt(out, proposalId);
+        out.put((byte) (nack ? 1 : 0));
+        putVarInt(out, index);
+        putVarInt(out, count);
+        putVarInt(out, record.length);
+        out.put(record, offset, Math.min(chunk, record.length - offset));
+    }
+
+    /**
+     * Returns the number of bytes {@link #putFragment} writes.
+     */
+    public static int fragmentSize(int senderId, int seq, int proposalId, int index, int count, int length) {
+        int chunk = fragmentChunk(length, count);
+        return 2 + varIntSize(senderId) + varIntSize(seq) + varIntSize(proposalId) + varIntSize(index)
+                + varIntSize(count) + varIntSize(length) + Math.min(chunk, length - index * chunk);
+    }
+
+    /**
+     * Returns the bytes carried by every fragment but the last.
+     */
+    public static int fragmentChunk(int length, int count) {
+        return (int) (((long) length + count - 1) / count);
+    }
+
+    /**
+     * Appends a heartbeat, an empty cumulative ACK that only tells the receiver we are alive.
+     */
+    public static void putHeartbeat(ByteBuffer out, int senderId) {
+        out.put(CUMULATIVE_ACK);
+        putVarInt(out, senderId);
+        putVarInt(out, 0);
+    }
+
+    /**
+     * Appends a relayed ACK for the first {@code count} of {@code ackers}, which are ascending.
+     */
+    public static void putRelayAck(ByteBuffer out, int senderId, int origin, int proposalId, int proposalNb,
+                                   int[] ackers, int count) {
+        out.put(RELAY_ACK);
+        putVarInt(out, senderId);
+        putVarInt(out, origin);
+        putVarInt(out, proposalId);
+        putVarInt(out, proposalNb);
+        putVarInt(out, count);
+        for (int i = 0; i < count; i++) {
+            putVarInt(out, i == 0 ? ackers[0] : ackers[i] - ackers[i - 1]);
+        }
+    }
+
+    /**
+     * Appends a request for the first {@code count} fragments of {@code indices}, which are ascending.
+     */
+    public static void putFragmentRequest(ByteBuffer out, int senderId, int seq, int[] indices, int count) {
+        out.put(FRAGMENT_REQUEST);
+        putVarInt(out, senderId);
+        putVarInt(out, seq);
+        putVarInt(out, count);
+        for (int i = 0; i < count; i++) {
+            putVarInt(out, i == 0 ? indices[0] : indices[i] - indices[i - 1]);
+        }
+    }
+
+    /**
+     * Decodes the first message of the datagram starting at the buffer's current position,
+     * accepting both the compact and the legacy encoding.
+     */
+    public static Message decode(ByteBuffer in) throws IOException {
+        byte version;
+        try {
+            version = in.get(in.position());
+            if (version == LEGACY_VERSION) {
+                return decodeLegacy(in);
+            }
+            if (version != VERSION && version != RECORDS_VERSION && version != DELTA_VERSION) {
+                throw new IOException("Unsupported wire version " + version);
+            }
+            in.get();
+            if (version == VERSION) {
+                getVarInt(in);
+            }
+        } catch (IndexOutOfBoundsException | BufferUnderflowException e) {
+            throw new IOException("Truncated message");
+        }
+        return decodeRecord(in, version, null);
+    }
+
+    /**
+     * Decodes every message of the datagram in the buffer and appends them to {@code out}, skipping
+     * fragment records.
+     */
+    public static void decodeAll(ByteBuffer in, List<Message> out) throws IOException {
+        decodeAll(in, out, null);
+    }
+
+    /**
+     * Decodes every message of the datagram in the buffer and appends them to {@code out}; fragment
+     * records go to the sink, or are skipped if it is null.
+     */
+    public static void decodeAll(ByteBuffer in, List<Message> out, FragmentSink sink) throws IOException {
+        decodeAll(in, out, sink, null);
+    }
+
+    /**
+     * Decodes the messages of the datagram in the buffer that the filter accepts, if any, and appends
+     * them to {@code out}; fragment records go to the sink, or are skipped if it is null. Rejected
+     * records are skipped after their header, without decoding their set.
+     */
+    public static void decodeAll(ByteBuffer in, List<Message> out, FragmentSink sink, RecordFilter filter) throws IOException {
+        decodeAll(in, out, sink, filter, null);
+    }
+
+    /**
+     * Decodes the datagram like {@link #decodeAll(ByteBuffer, List, FragmentSink, RecordFilter)}, and
+     * hands relayed ACK records to {@code relaySink}, or skips them if it is null.
+     */
+    public static void decodeAll(ByteBuffer in, List<Message> out, FragmentSink sink, RecordFilter filter,
+                                 RelaySink relaySink) throws IOException {
+        if (!in.hasRemaining()) {
+            throw new IOException("Empty datagram");
+        }
+        byte version = in.get();
+        if (version == LEGACY_VERSION) {
+            in.position(in.position() - 1);
+            out.add(decodeLegacy(in)); // The legacy format carries a single message per datagram
+            return;
+        }
+        if (version != VERSION && version != RECORDS_VERSION && version != DELTA_VERSION) {
+            throw new IOException("Unsupported wire version " + version);
+        }
+        if (version == VERSION) {
+            try {
+                getVarInt(in); // The datagram's sender, see peekSenderId
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Truncated message");
+            }
+        }
+        if (!in.hasRemaining()) {
+            throw new IOException("Truncated message");
+        }
+        while (in.hasRemaining()) {
+            byte type = in.get(in.position());
+            if (type == CUMULATIVE_ACK) {
+                decodeCumulativeAck(in, out, filter);
+            } else if (type == FRAGMENT || type == FRAGMENT_REQUEST) {
+                decodeFragmentRecord(in, out, sink);
+            } else if (type == RELAY_ACK) {
+                decodeRelayAck(in, relaySink);
+            } else {
+                Message message = decodeRecord(in, version, filter);
+                if (message != null) {
+                    out.add(message);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the process that sent the datagram, without moving the buffer, or 0 if the datagram
+     * is too short to tell. Older versions are credited to the sender of their first record.
+     */
+    public static int peekSenderId(ByteBuffer in) {
+        ByteBuffer view = in.duplicate();
+        try {
+            byte version = view.get();
+            if (version == LEGACY_VERSION) {
+                return view.getInt(in.position() + 4); // The version byte is the high byte of the type int
+            }
+            if (version != VERSION) {
+                view.get(); // Type of the first record
+            }
+            return getVarInt(view);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Decodes a record of the current version that was reassembled from fragments.
+     */
+    public static Message decodeRecord(ByteBuffer in) throws IOException {
+        Message message = decodeRecord(in, VERSION, null);
+        if (in.hasRemaining()) {
+            throw new IOException("Trailing bytes after reassembled record");
+        }
+        return message;
+    }
+
+    private static void decodeFragmentRecord(ByteBuffer in, List<Message> out, FragmentSink sink) throws IOException {
+        try {
+            byte type = in.get();
+            int senderId = getVarInt(in);
+            int seq = getVarInt(in);
+            if (type == FRAGMENT_REQUEST) {
+                int count = getVarInt(in);
+                if (count < 0 || count > in.remaining()) { // Every index takes at least one byte
+                    throw new IOException("Invalid fragment request size " + count);
+                }
+                int[] indices = new int[count];
+                for (int i = 0; i < count; i++) {
+                    indices[i] = i == 0 ? getVarInt(in) : indices[i - 1] + getVarInt(in);
+                }
+                if (sink != null) {
+                    sink.onFragmentRequest(senderId, seq, indices, count);
+                }
+                return;
+            }
+            int proposalId = getVarInt(in);
+            boolean nack = in.get() != 0;
+            int index = getVarInt(in);
+            int count = getVarInt(in);
+            int totalLength = getVarInt(in);
+            if (count <= 0 || index < 0 || index >= count || totalLength < count) {
+                throw new IOException("Invalid fragment " + index + " of " + count);
+            }
+            int chunk = fragmentChunk(totalLength, count);
+            int length = Math.min(chunk, totalLength - index * chunk);
+            if (length <= 0 || length > in.remaining()) {
+                throw new IOException("Truncated fragment");
+            }
+            ByteBuffer bytes = in.slice();
+            bytes.limit(length);
+            in.position(in.position() + length);
+            if (sink != null) {
+                sink.onFragment(senderId, seq, proposalId, nack, index, count, totalLength, bytes, out);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated message");
+        }
+    }
+
+    private static void decodeRelayAck(ByteBuffer in, RelaySink sink) throws IOException {
+        try {
+            in.get();
+            int senderId = getVarInt(in);
+            int origin = getVarInt(in);
+            int proposalId = getVarInt(in);
+            int proposalNb = getVarInt(in);
+            int count = getVarInt(in);
+            if (count < 0 || count > in.remaining()) { // Every acker takes at least one byte
+                throw new IOException("Invalid relayed ACK size " + count);
+            }
+            int[] ackers = new int[count];
+            for (int i = 0; i < count; i++) {
+                ackers[i] = i == 0 ? getVarInt(in) : ackers[i - 1] + getVarInt(in);
+            }
+            if (sink != null) {
+                sink.onRelayAck(senderId, origin, proposalId, proposalNb, ackers, count);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated message");
+        }
+    }
+
+    private static void decodeCumulativeAck(ByteBuffer in, List<Message> out, RecordFilter filter) throws IOException {
+        try {
+            in.get();
+            int senderId = getVarInt(in);
+            int count = getVarInt(in);
+            if (count < 0 || count > in.remaining() / 2) { // Every entry takes at least two bytes
+                throw new IOException("Invalid cumulative ACK size " + count);
+            }
+            int proposalId = 0;
+            for (int i = 0; i < count; i++) {
+                proposalId = i == 0 ? getVarInt(in) : proposalId + getVarInt(in);
+                int proposalNb = getVarInt(in);
+                if (filter == null || filter.accept(Message.MessageType.ACK, senderId, proposalId, proposalNb)) {
+                    out.add(Message.createAck(senderId, proposalId, proposalNb));
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated message");
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Malformed message: " + e.getMessage());
+        }
+    }
+
+    // Returns null if the filter rejects the record
+    private static Message decodeRecord(ByteBuffer in, byte version, RecordFilter filter) throws IOException {
+        try {
+            int typeOrdinal = in.get();
+            if (typeOrdinal < 0 || typeOrdinal >= TYPES.length) {
+                throw new IOException("Unknown message type " + typeOrdinal);
+            }
+            int senderId = getVarInt(in);
+            int proposalId = getVarInt(in);
+            int proposalNb = getVarInt(in);
+            int baseProposalNb = TYPES[typeOrdinal] == Message.MessageType.PROPOSAL_DELTA ? getVarInt(in) : 0;
+
+            int setSize = getVarInt(in);
+            if (setSize < 0 || setSize > MAX_DECODED_VALUES) {
+                throw new IOException("Invalid proposal set size " + setSize);
+            }
+            byte encoding = setSize == 0 || version == DELTA_VERSION ? SET_DELTAS : in.get();
+            if (filter != null && !filter.accept(TYPES[typeOrdinal], senderId, proposalId, proposalNb)) {
+                if (setSize > 0) {
+                    skipSet(in, setSize, encoding);
+                }
+                return null;
+            }
+            if (setSize == 0) {
+                return Message.fromWire(TYPES[typeOrdinal], senderId, proposalId, proposalNb, baseProposalNb, null);
+            }
+            // Only runs hold more values than bits; the others cannot claim a size the datagram does not back
+            if (encoding != SET_RUNS && setSize > 8L * in.remaining() + 1) {
+                throw new IOException("Invalid proposal set size " + setSize);
+            }
+            // Decoded here in one pass, which also validates it: the receive buffer is reused for the
+            // next datagram, and the sets the values join belong to the shard threads
+            int[] values = new int[setSize];
+            decodeSet(in, setSize, encoding, values);
+            return Message.fromWire(TYPES[typeOrdinal], senderId, proposalId, proposalNb, baseProposalNb, values);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("Truncated message");
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Malformed message: " + e.getMessage());
+        }
+    }
+
+    // Decodes a set into values, which holds setSize values, checking it against its size
+    private static void decodeSet(ByteBuffer in, int setSize, byte encoding, int[] values) throws IOException {
+        int zigZag = getVarInt(in);
+        int first = (zigZag >>> 1) ^ -(zigZag & 1);
+        if (encoding == SET_DELTAS) {
+            if (setSize - 1 > in.remaining()) { // every value takes at least one byte
+                throw new IOException("Invalid proposal set size " + setSize);
+            }
+            long value = first;
+            values[0] = first;
+            for (int i = 1; i < setSize; i++) {
+                int delta = getVarInt(in);
+                value += delta & 0xFFFFFFFFL; // Unsigned, values are sorted and distinct
+                if (delta == 0 || value > Integer.MAX_VALUE) {
+                    throw new IOException("Proposal set is not sorted and distinct");
+                }
+                values[i] = (int) value;
+            }
+            return;
+        }
+        if (encoding == SET_BITMAP) {
+            int bytes = getVarInt(in);
+            if (bytes < 0 || bytes > in.remaining() || setSize > 8L * bytes) {
+                throw new IOException("Invalid proposal bitmap of " + bytes + " bytes");
+            }
+            int n = 0;
+            for (int i = 0; i < bytes; i++) {
+                int bits = in.get() & 0xFF;
+                while (bits != 0) {
+                    if (n == setSize) {
+                        throw new IOException("Proposal bitmap holds more than " + setSize + " values");
+                    }
+                    values[n++] = first + (i << 3) + Integer.numberOfTrailingZeros(bits);
+                    bits &= bits - 1;
+                }
+            }
+            if (n != setSize) {
+                throw new IOException("Proposal bitmap holds " + n + " values instead of " + setSize);
+            }
+            return;
+        }
+        if (encoding == SET_RUNS) {
+            int runCount = getVarInt(in);
+            if (runCount <= 0 || runCount > setSize || runCount - 1 > in.remaining()) {
+                throw new IOException("Invalid proposal run count " + runCount);
+            }
+            int n = 0;
+            long next = first;
+            for (int r = 0; r < runCount; r++) {
+                if (r > 0) {
+                    long gap = getVarInt(in) & 0xFFFFFFFFL; // Unsigned, like deltas
+                    if (gap == 0) {
+                        throw new IOException("Invalid gap between proposal runs");
+                    }
+                    next += gap - 1;
+                }
+                long length = (getVarInt(in) & 0xFFFFFFFFL) + 1;
+                if (length > setSize - n || next + length - 1 > Integer.MAX_VALUE) {
+                    throw new IOException("Proposal runs exceed the set size " + setSize);
+                }
+                for (long i = 0; i < length; i++) {
+                    values[n++] = (int) next++;
+                }
+            }
+            if (n != setSize) {
+                throw new IOException("Proposal runs hold " + n + " values instead of " + setSize);
+            }
+            return;
+        }
+        throw new IOException("Unknown set encoding " + encoding);
+    }
+
+    // Moves past a set without validating it: a bitmap by its byte count, other encodings by
+    // counting the varints that end, from their continuation bits
+    private static void skipSet(ByteBuffer in, int setSize, byte encoding) throws IOException {
+        skipVarInts(in, 1);
+        if (encoding == SET_DELTAS) {
+            skipVarInts(in, setSize - 1);
+        } else if (encoding == SET_BITMAP) {
+            int bytes = getVarInt(in);
+            if (bytes < 0 || bytes > in.remaining()) {
+                throw new IOException("Invalid proposal bitmap of " + bytes + " bytes");
+            }
+            in.position(in.position() + bytes);
+        } else if (encoding == SET_RUNS) {
+            int runCount = getVarInt(in);
+            if (runCount <= 0 || runCount > setSize) {
+                throw new IOException("Invalid proposal run count " + runCount);
+            }
+            skipVarInts(in, 2 * runCount - 1); // A length per run, and a gap before all but the first
+        } else {
+            throw new IOException("Unknown set encoding " + encoding);
+        }
+    }
+
+    private static void skipVarInts(ByteBuffer in, int count) {
+        while (count > 0) {
+            if (in.get() >= 0) { // No continuation bit: last byte of a varint
+                count--;
+            }
+        }
+    }
+
+    // Pre-varint format: five big-endian ints followed by one int per set element, in no particular order
+    private static Message decodeLegacy(ByteBuffer in) throws IOException {
+        try {
+            return decodeLegacyFields(in);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated message");
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Malformed message: " + e.getMessage());
+        }
+    }
+
+    private static Message decodeLegacyFields(ByteBuffer in) throws IOException {
+        int typeOrdinal = in.getInt();
+        if (typeOrdinal < 0 || typeOrdinal > Message.MessageType.NACK.ordinal()) { // Types known to the legacy format
+            throw new IOException("Unknown message type " + typeOrdinal);
+        }
+        int senderId = in.getInt();
+        int proposalId = in.getInt();
+        int proposalNb = in.getInt();
+        int setSize = in.getInt();
+        if (setSize < 0 || setSize > in.remaining() / Integer.BYTES) {
+            throw new IOException("Invalid proposal set size " + setSize);
+        }
+        int[] values = null;
+        if (setSize > 0) {
+            values = new int[setSize];
+            for (int i = 0; i < setSize; i++) {
+                values[i] = in.getInt();
+            }
+            values = Message.sortDistinct(values);
+        }
+        return Message.fromWire(TYPES[typeOrdinal], senderId, proposalId, proposalNb, 0, values);
+    }
+
+    /**
+     * Writes an int as an unsigned LEB128 varint (1 to 5 bytes).
+     */
+    public static void putVarInt(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    /**
+     * Returns the number of bytes {@link #putVarInt(ByteBuffer, int)} writes for the value.
+     */
+    public static int varIntSize(int value) {
+        if ((value & ~0x7F) == 0) {
+            return 1;
+        }
+        if ((value & ~0x3FFF) == 0) {
+            return 2;
+        }
+        if ((value & ~0x1FFFFF) == 0) {
+            return 3;
+        }
+        if ((value & ~0xFFFFFFF) == 0) {
+            return 4;
+        }
+        return 5;
+    }
+
+    /**
+     * Reads an unsigned LEB128 varint written by {@link #putVarInt(ByteBuffer, int)}.
+     */
+    public static int getVarInt(ByteBuffer in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint too long");
+    }
+}
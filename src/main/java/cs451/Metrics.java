@@ -0,0 +1,292 @@
+package cs451;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and histograms of one process, cheap enough to update on every message.
+ *
+ * Counters are {@link LongAdder}s, so concurrent shard and network threads do not contend on a
+ * cache line; histograms are {@link LogHistogram}s. The values are exposed over JMX and, every
+ * {@code intervalMillis} if positive, as one compact line on standard output.
+ */
+public class Metrics implements MetricsMXBean {
+    private final int processId;
+    private final LogHistogram decisionLatencyMicros = new LogHistogram();
+    private final LogHistogram rounds = new LogHistogram(); // Final proposalNb of each decided instance
+    private final LongAdder retransmits = new LongAdder();
+    private final LongAdder suppressedRetransmits = new LongAdder(); // Not sent, the peer was suspected
+    private final LongAdder peerRecoveries = new LongAdder(); // Suspected peers heard from again
+    private final LongAdder relayed = new LongAdder(); // Peers' rounds we forwarded down their relay tree
+    private final LongAdder staleMessages = new LongAdder();
+    private final LongAdder decodeFailures = new LongAdder();
+    private final LongAdder coalesced = new LongAdder(); // Queued messages replaced by a newer round
+    private final LongAdder fragmentedRecords = new LongAdder(); // Records too large for one datagram
+    private final LongAdder fragmentsRequested = new LongAdder(); // Missing fragments we asked peers for
+    private final LongAdder fragmentsResent = new LongAdder(); // Fragments peers asked us for
+    private final LongAdder[] packetsSent; // Indexed by hostId - 1
+    private final LongAdder[] bytesSent;
+    private final LongAdder[] packetsReceived;
+    private final LongAdder[] bytesReceived;
+    private final long intervalMillis;
+    private ObjectName name;
+    private Thread reporter;
+
+    public Metrics(int processId, int totalProcesses, long intervalMillis) {
+        this.processId = processId;
+        this.packetsSent = adders(totalProcesses);
+        this.bytesSent = adders(totalProcesses);
+        this.packetsReceived = adders(totalProcesses);
+        this.bytesReceived = adders(totalProcesses);
+        this.intervalMillis = intervalMillis;
+    }
+
+    private static LongAdder[] adders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    /**
+     * Registers the MBean and starts the periodic stats line.
+     */
+    public void start() {
+        try {
+            name = new ObjectName("cs451:type=Metrics,process=" + processId);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        } catch (JMException e) {
+            name = null;
+            System.err.println("Error registering metrics of process " + processId + ": " + e.getMessage());
+        }
+        if (intervalMillis > 0) {
+            reporter = new Thread(this::report, "metrics-reporter");
+            reporter.setDaemon(true);
+            reporter.start();
+        }
+    }
+
+    public void stop() {
+        if (reporter != null) {
+            reporter.interrupt();
+        }
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException e) {
+                System.err.println("Error unregistering metrics of process " + processId + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void report() {
+        try {
+            while (true) {
+                Thread.sleep(intervalMillis);
+                System.out.println(statsLine());
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        }
+    }
+
+    /**
+     * Returns a one-line summary, e.g. for logs: decisions, latency percentiles, rounds and traffic.
+     */
+    public String statsLine() {
+        return String.format("p%d decided=%d lat_us{p50=%d p99=%d max=%d} rounds{mean=%.2f max=%d} retx=%d suppressed=%d recovered=%d"
+                        + " relayed=%d stale=%d badDecode=%d coalesced=%d frags{records=%d req=%d resent=%d} sent=%d/%dB recv=%d/%dB",
+                processId, getDecisions(), getDecisionLatencyP50Micros(), getDecisionLatencyP99Micros(),
+                getDecisionLatencyMaxMicros(), getRoundsMean(), getRoundsMax(), getRetransmits(), getSuppressedRetransmits(),
+                getPeerRecoveries(), getRelayedProposals(), getStaleMessages(),
+                getDecodeFailures(), getCoalescedMessages(), getFragmentedRecords(),
+                getFragmentsRequested(), getFragmentsResent(), sum(packetsSent), sum(bytesSent), sum(packetsReceived), sum(bytesReceived));
+    }
+
+    void onDecided(long latencyNanos, int proposalNb) {
+        decisionLatencyMicros.record(latencyNanos / 1000);
+        rounds.record(proposalNb);
+    }
+
+    void onRetransmit() {
+        retransmits.increment();
+    }
+
+    void onSuppressedRetransmit() {
+        suppressedRetransmits.increment();
+    }
+
+    void onPeerRecovered() {
+        peerRecoveries.increment();
+    }
+
+    void onRelayed(int count) {
+        relayed.add(count);
+    }
+
+    void onStaleMessage() {
+        staleMessages.increment();
+    }
+
+    void onDecodeFailure() {
+        decodeFailures.increment();
+    }
+
+    void onCoalesced() {
+        coalesced.increment();
+    }
+
+    void onFragmented() {
+        fragmentedRecords.increment();
+    }
+
+    void onFragmentsRequested(int count) {
+        fragmentsRequested.add(count);
+    }
+
+    void onFragmentsResent(int count) {
+        fragmentsResent.add(count);
+    }
+
+    void onSent(int hostId, int bytes) {
+        packetsSent[hostId - 1].increment();
+        bytesSent[hostId - 1].add(bytes);
+    }
+
+    void onReceived(int hostId, int bytes) {
+        packetsReceived[hostId - 1].increment();
+        bytesReceived[hostId - 1].add(bytes);
+    }
+
+    LogHistogram getDecisionLatencyHistogram() {
+        return decisionLatencyMicros;
+    }
+
+    LogHistogram getRoundsHistogram() {
+        return rounds;
+    }
+
+    @Override
+    public long getDecisions() {
+        return decisionLatencyMicros.getCount();
+    }
+
+    @Override
+    public double getDecisionLatencyMeanMicros() {
+        return decisionLatencyMicros.getMean();
+    }
+
+    @Override
+    public long getDecisionLatencyP50Micros() {
+        return decisionLatencyMicros.getQuantile(0.5);
+    }
+
+    @Override
+    public long getDecisionLatencyP99Micros() {
+        return decisionLatencyMicros.getQuantile(0.99);
+    }
+
+    @Override
+    public long getDecisionLatencyMaxMicros() {
+        return decisionLatencyMicros.getMax();
+    }
+
+    @Override
+    public double getRoundsMean() {
+        return rounds.getMean();
+    }
+
+    @Override
+    public long getRoundsMax() {
+        return rounds.getMax();
+    }
+
+    @Override
+    public long getRetransmits() {
+        return retransmits.sum();
+    }
+
+    @Override
+    public long getSuppressedRetransmits() {
+        return suppressedRetransmits.sum();
+    }
+
+    @Override
+    public long getPeerRecoveries() {
+        return peerRecoveries.sum();
+    }
+
+    @Override
+    public long getRelayedProposals() {
+        return relayed.sum();
+    }
+
+    @Override
+    public long getStaleMessages() {
+        return staleMessages.sum();
+    }
+
+    @Override
+    public long getDecodeFailures() {
+        return decodeFailures.sum();
+    }
+
+    @Override
+    public long getCoalescedMessages() {
+        return coalesced.sum();
+    }
+
+    @Override
+    public long getFragmentedRecords() {
+        return fragmentedRecords.sum();
+    }
+
+    @Override
+    public long getFragmentsRequested() {
+        return fragmentsRequested.sum();
+    }
+
+    @Override
+    public long getFragmentsResent() {
+        return fragmentsResent.sum();
+    }
+
+    @Override
+    public long[] getPacketsSent() {
+        return sums(packetsSent);
+    }
+
+    @Override
+    public long[] getBytesSent() {
+        return sums(bytesSent);
+    }
+
+    @Override
+    public long[] getPacketsReceived() {
+        return sums(packetsReceived);
+    }
+
+    @Override
+    public long[] getBytesReceived() {
+        return sums(bytesReceived);
+    }
+
+    private static long[] sums(LongAdder[] adders) {
+        long[] sums = new long[adders.length];
+        for (int i = 0; i < adders.length; i++) {
+            sums[i] = adders[i].sum();
+        }
+        return sums;
+    }
+
+    private static long sum(LongAdder[] adders) {
+        long sum = 0;
+        for (LongAdder adder : adders) {
+            sum += adder.sum();
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,49 @@
+package cs451;
+
+/**
+ * JMX view of {@link Metrics}, registered as {@code cs451:type=Metrics,process=<id>}.
+ * Per-peer arrays are indexed by hostId - 1.
+ */
+public interface MetricsMXBean {
+    long getDecisions();
+
+    double getDecisionLatencyMeanMicros();
+
+    long getDecisionLatencyP50Micros();
+
+    long getDecisionLatencyP99Micros();
+
+    long getDecisionLatencyMaxMicros();
+
+    double getRoundsMean();
+
+    long getRoundsMax();
+
+    long getRetransmits();
+
+    long getSuppressedRetransmits();
+
+    long getPeerRecoveries();
+
+    long getRelayedProposals();
+
+    long getStaleMessages();
+
+    long getDecodeFailures();
+
+    long getCoalescedMessages();
+
+    long getFragmentedRecords();
+
+    long getFragmentsRequested();
+
+    long getFragmentsResent();
+
+    long[] getPacketsSent();
+
+    long[] getBytesSent();
+
+    long[] getPacketsReceived();
+
+    long[] getBytesReceived();
+}
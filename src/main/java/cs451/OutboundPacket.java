@@ -0,0 +1,63 @@
+package cs451;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pooled direct datagram buffer and its destination.
+ */
+public final class OutboundPacket {
+    final ByteBuffer buffer = ByteBuffer.allocateDirect(Transport.MAX_PACKET_SIZE);
+    private final Pool pool;
+    Host target;
+
+    private OutboundPacket(Pool pool) {
+        this.pool = pool;
+    }
+
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * Returns the packet to the pool it came from; the caller must not touch it afterwards.
+     */
+    void release() {
+        target = null;
+        pool.release(this);
+    }
+
+    /**
+     * Bounded pool of packets; {@code ConcurrentLinkedQueue.size()} is O(n), so it keeps its own count.
+     */
+    static final class Pool {
+        private final Queue<OutboundPacket> packets = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pooled = new AtomicInteger();
+        private final int maxPooled;
+
+        Pool(int maxPooled) {
+            this.maxPooled = maxPooled;
+        }
+
+        OutboundPacket acquire() {
+            OutboundPacket packet = packets.poll();
+            if (packet == null) {
+                packet = new OutboundPacket(this);
+            } else {
+                pooled.decrementAndGet();
+            }
+            packet.buffer.clear();
+            return packet;
+        }
+
+        private void release(OutboundPacket packet) {
+            if (pooled.incrementAndGet() <= maxPooled) {
+                packets.add(packet);
+            } else {
+                pooled.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package cs451;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * PROPOSAL and NACK messages waiting to be sent to one peer, at most one of each per instance and sender.
+ *
+ * A newer round for an instance replaces the queued one in place, keeping its position, so a
+ * round superseded before the datagram leaves never reaches the wire. Proposals can be queued as a
+ * {@link Proposal}, whose set is only turned into a message when the queue is drained. Not
+ * thread-safe; the {@link DatagramBatcher} guards it with the destination's batch monitor.
+ */
+class OutboundQueue {
+    private final List<Entry> entries = new ArrayList<>(); // In first-queued order
+    private final Map<Long, Entry> byKey = new HashMap<>(); // (proposalId << 12 | sender) << 1 | 1 for NACKs
+    private int estimatedBytes;
+    private long firstQueuedNanos;
+
+    /**
+     * Queues a message, returning false if it replaced or was superseded by a queued one.
+     */
+    boolean offer(Message message) {
+        return offer(message.getSenderId(), message.getProposalId(), message.getType() == Message.MessageType.NACK,
+                message.getProposalNb(), message, null, MessageCodec.encodedSize(message));
+    }
+
+    /**
+     * Queues a full proposal whose message is built when drained, returning false if it replaced
+     * or was superseded by a queued one.
+     */
+    boolean offer(Proposal proposal) {
+        return offer(proposal.senderId, proposal.proposalId, false, proposal.proposalNb, null, proposal, proposal.estimatedSize());
+    }
+
+    // The sender is only ever someone else for rounds relayed down a RelayTree
+    private boolean offer(int senderId, int proposalId, boolean nack, int proposalNb, Message message, Proposal proposal, int size) {
+        long key = ((long) proposalId << 12 | senderId) << 1 | (nack ? 1 : 0);
+        Entry entry = byKey.get(key);
+        if (entry != null) {
+            if (proposalNb >= entry.proposalNb) {
+                estimatedBytes += size - entry.size;
+                entry.set(proposalNb, message, proposal, size);
+            }
+            return false;
+        }
+        if (entries.isEmpty()) {
+            firstQueuedNanos = System.nanoTime();
+        }
+        entry = new Entry();
+        entry.set(proposalNb, message, proposal, size);
+        entries.add(entry);
+        byKey.put(key, entry);
+        estimatedBytes += size;
+        return true;
+    }
+
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * Returns the approximate encoded size of the queued records.
+     */
+    int getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    long getFirstQueuedNanos() {
+        return firstQueuedNanos;
+    }
+
+    /**
+     * Returns the messages in queue order and empties the queue.
+     */
+    List<Message> drain(List<Message> out) {
+        for (Entry entry : entries) {
+            out.add(entry.message != null ? entry.message : entry.proposal.message());
+        }
+        entries.clear();
+        byKey.clear();
+        estimatedBytes = 0;
+        return out;
+    }
+
+    private static final class Entry {
+        private int proposalNb;
+        private Message message; // Null if the entry holds a lazy proposal
+        private Proposal proposal;
+        private int size;
+
+        private void set(int proposalNb, Message message, Proposal proposal, int size) {
+            this.proposalNb = proposalNb;
+            this.message = message;
+            this.proposal = proposal;
+            this.size = size;
+        }
+    }
+
+    /**
+     * A full PROPOSAL over an immutable {@link LatticeSet} snapshot; the sorted values are only
+     * computed on the first drain and then shared by every peer the proposal is queued for.
+     */
+    static final class Proposal {
+        private final int senderId;
+        private final int proposalId;
+        private final int proposalNb;
+        private final LatticeSet set;
+        private volatile Message message;
+
+        Proposal(int senderId, int proposalId, int proposalNb, LatticeSet snapshot) {
+            this.senderId = senderId;
+            this.proposalId = proposalId;
+            this.proposalNb = proposalNb;
+            this.set = snapshot;
+        }
+
+        Message message() {
+            Message built = message;
+            if (built == null) { // Racing drains of different peers build equal messages, either one is kept
+                built = Message.createProposal(senderId, proposalId, set, proposalNb);
+                message = built;
+            }
+            return built;
+        }
+
+        // Header plus about two bytes per delta-encoded value; only used to decide when to flush
+        private int estimatedSize() {
+            return 12 + 2 * set.size();
+        }
+    }
+}
@@ -1,232 +1,428 @@
 package cs451;
 
 import java.io.*;
-import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
 import java.util.*;
-import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
 
 public class Process {
     private final int processId;
     private final int totalProcesses;
     private final Host myHost;
     private final List<Host> hosts;
-    private final AckTracker ackTracker;
-    private final NetworkSimulator networkSimulator;
-    private final DatagramSocket socket;
-    private final BufferedWriter writer;
-    private final Timer retryTimer = new Timer(true);
-    private final List<Set<Integer>> proposals;
-    private final List<Integer> proposalNb;
-    private final List<Boolean> decided;
-    private int currentId;
-
-    private static final int MAX_RETRIES = 5;
-    private static final long RETRY_INTERVAL = 1000; // Retry interval in milliseconds
-    private static final int BUFFER_SIZE = 1024; // Datagram packet buffer size
-
-    public Process(int processId, int totalProcesses, Host myHost, List<Host> hosts, String outputFile, List<Set<Integer>> proposals) throws IOException {
+    private final Transport transport;
+    private final DatagramBatcher batcher;
+    private final FailureDetector detector; // Null if disabled
+    private final RelayTree relayTree; // Null to send every round straight to every peer
+    private final IntPredicate suspected = hostId -> isSuspected(hostId, System.nanoTime());
+    private final MessageCodec.RelaySink relaySink = this::onRelayAck;
+    private final Reassembler reassembler; // Only used on the network thread
+    private final DecisionLog decisionLog; // Null in continuous mode
+    private final LatticeAgreementEngine.LearnListener listener; // Continuous mode only
+    private final Metrics metrics;
+    private final TimingWheel retransmitTimers;
+    private final RttEstimator[] rtt; // Indexed by hostId - 1
+    private final int totalInstances;
+    private final Shard[] shards; // Instance id is owned by shards[id % shards.length]
+    private final InstanceWindow window;
+    private final List<Message> received = new ArrayList<>(); // Only used on the network thread
+    private final MessageCodec.RecordFilter filter = this::accept; // Network thread only, like acceptLimit
+    private int acceptLimit; // First instance beyond the capacity, as of the datagram being decoded
+    private final ValueDictionary dictionary;
+    private final ConfigReader config; // Read in instance order as the window opens, under the Process monitor; null in continuous mode
+    private final int capacity; // Instances that may be held at once, from the release prefix on
+    private final int[] peerPrefix; // Decided prefix announced by each host, indexed by hostId - 1
+    private final long[] peerHeardNanos; // When each host last announced it
+    private volatile int releasePrefix; // Instances below it are forgotten by the shards
+    private final boolean durable; // Crash recovery enabled, see WriteAheadLog
+    private volatile Consumer<RuntimeException> failureListener;
+    private volatile RuntimeException failure; // First error that stopped a shard
+
+    private static final int MAX_RETRIES = 5; // Retransmission timeout stops doubling after this many retries
+
+    public Process(int processId, int totalProcesses, Host myHost, List<Host> hosts, String outputFile,
+                   ValueDictionary dictionary, ConfigReader proposals, Transport transport) throws IOException {
+        this(processId, totalProcesses, myHost, hosts, outputFile, dictionary, proposals, transport, null);
+    }
+
+    /**
+     * Creates a process in continuous mode, running instance 0 forever and reporting every learned
+     * set to the listener; see {@link LatticeAgreementEngine}.
+     */
+    Process(int processId, Host myHost, List<Host> hosts, ValueDictionary dictionary, Transport transport,
+            LatticeAgreementEngine.LearnListener listener) throws IOException {
+        this(processId, hosts.size(), myHost, hosts, null, dictionary, null, transport, listener);
+    }
+
+    private Process(int processId, int totalProcesses, Host myHost, List<Host> hosts, String outputFile,
+                    ValueDictionary dictionary, ConfigReader proposals, Transport transport,
+                    LatticeAgreementEngine.LearnListener listener) throws IOException {
         this.processId = processId;
         this.totalProcesses = totalProcesses;
         this.myHost = myHost;
         this.hosts = hosts;
-        this.ackTracker = new AckTracker(totalProcesses);
-        this.networkSimulator = new NetworkSimulator();
-        this.socket = new DatagramSocket(myHost.getPort());
-        this.proposals = proposals;
-        this.proposalNb = new ArrayList<>(Collections.nCopies(proposals.size(), 0));
-        this.decided = new ArrayList<>(Collections.nCopies(proposals.size(), false));
-        this.writer = new BufferedWriter(new FileWriter(outputFile));
-        this.currentId = 0;
+        this.dictionary = dictionary;
+        this.config = proposals;
+        this.listener = listener;
+        this.totalInstances = listener != null ? 1 : proposals.getProposalsPerProcess();
+        this.capacity = Constants.INSTANCE_CAPACITY > 0 ? Math.min(Constants.INSTANCE_CAPACITY, totalInstances) : totalInstances;
+        this.peerPrefix = new int[hosts.size()];
+        this.peerHeardNanos = new long[hosts.size()];
+        Arrays.fill(peerHeardNanos, System.nanoTime());
+        this.transport = transport;
+        this.metrics = new Metrics(processId, hosts.size(), Constants.METRICS_INTERVAL_MILLIS);
+        this.detector = Constants.FD_MIN_TIMEOUT_MILLIS > 0 ? new FailureDetector(hosts.size(), Constants.FD_HEARTBEAT_MILLIS,
+                Constants.FD_PROBE_MILLIS, Constants.FD_MIN_TIMEOUT_MILLIS, Constants.FD_MAX_MARGIN_MILLIS) : null;
+        // Peers only need our decided prefix to release instances when memory is bounded
+        this.batcher = new DatagramBatcher(transport, processId, hosts, Constants.BATCH_MAX_BYTES,
+                Constants.BATCH_LINGER_MICROS, Constants.ACK_REPEAT, Constants.FRAGMENT_CACHE, isBounded() ? this::getDecidedPrefix : null,
+                detector, metrics);
+        this.relayTree = Constants.RELAY_FANOUT > 0 ? new RelayTree(totalProcesses, Constants.RELAY_FANOUT) : null;
+        this.reassembler = new Reassembler(totalProcesses, batcher, metrics, Constants.FRAGMENT_PARTIALS,
+                Constants.FRAGMENT_MAX_BYTES, Constants.FRAGMENT_REQUEST_MICROS);
+        this.shards = new Shard[listener != null ? 1 : Math.max(1, Constants.SHARDS)];
+        // One spare slot per shard, so that a slot is only recycled for an instance capacity ids later
+        int slots = (capacity + shards.length - 1) / shards.length + 1;
+        this.durable = Constants.WAL_DIR != null && listener == null;
+        for (int i = 0; i < shards.length; i++) {
+            WriteAheadLog wal = durable ? new WriteAheadLog(Paths.get(Constants.WAL_DIR), "p" + processId + "-shard" + i,
+                    shards.length, Constants.WAL_BYTES) : null;
+            shards[i] = new Shard(i, shards.length, processId, totalProcesses, listener != null, this, dictionary, slots, wal);
+            if (durable) {
+                shards[i].recover();
+            }
+        }
+        this.rtt = new RttEstimator[hosts.size()];
+        for (int i = 0; i < rtt.length; i++) {
+            rtt[i] = new RttEstimator(Constants.RTO_INITIAL_MILLIS, Constants.RTO_MIN_MILLIS, Constants.RTO_MAX_MILLIS, MAX_RETRIES);
+        }
+        this.retransmitTimers = new TimingWheel(Constants.TIMER_TICK_MICROS, Constants.TIMER_BUCKETS, this::onRetransmitTimeout);
+        this.window = new InstanceWindow(Constants.WINDOW_INITIAL, Constants.WINDOW_MIN, Constants.WINDOW_MAX);
+        // The window never lets more than WINDOW_MAX instances past the decided prefix
+        this.decisionLog = listener != null ? null : new DecisionLog(outputFile, totalInstances, Constants.WINDOW_MAX,
+                Constants.LOG_FLUSH_BYTES, Constants.LOG_FLUSH_MICROS, this::fillWindow, durable);
+        if (durable && decisionLog.getNextId() > 0) {
+            // Restarted: instances already in the output are only answered as an acceptor, the others
+            // are proposed again, on top of what the shards recovered and with newer rounds
+            window.startAt(decisionLog.getNextId());
+            config.skip(decisionLog.getNextId());
+        }
     }
 
     public void start() throws IOException {
-        new Thread(this::listen).start();
-
-        for (int id = 0; id < proposals.size(); id++) {
-            propose(id);
+        for (Shard shard : shards) {
+            shard.start();
         }
+        metrics.start();
+        retransmitTimers.start();
+        batcher.start();
+        if (decisionLog != null) {
+            decisionLog.start();
+        }
+        transport.start(this::onDatagram);
 
-        retryTimer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                retryProposals();
-            }
-        }, 0, RETRY_INTERVAL);
+        if (config != null) {
+            fillWindow();
+        }
     }
 
-    private void listen() {
-        while (true) {
-            try {
-                byte[] buffer = new byte[BUFFER_SIZE];
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                socket.receive(packet);
-
-                Message message = Message.fromBytes(packet.getData());
-                handleMessage(message);
-            } catch (SocketException e) {
-                System.err.println("Socket error in process " + processId + ": " + e.getMessage());
-                break; // Exit loop for unrecoverable socket errors
-            } catch (IOException e) {
-                System.err.println("Error in process " + processId + " while listening: " + e.getMessage());
-                e.printStackTrace();
+    private void onDatagram(ByteBuffer datagram) {
+        int bytes = datagram.remaining();
+        int senderId = MessageCodec.peekSenderId(datagram);
+        if (senderId >= 1 && senderId <= totalProcesses) {
+            metrics.onReceived(senderId, bytes);
+            if (detector != null && detector.onHeard(senderId, System.nanoTime())) {
+                onPeerRecovered(senderId);
             }
         }
+        try {
+            received.clear();
+            int limit = (int) Math.min(totalInstances, (long) releasePrefix + capacity);
+            acceptLimit = limit;
+            // A datagram may carry records for many proposals, and fragments completing others
+            MessageCodec.decodeAll(datagram, received, reassembler, filter, relaySink);
+            for (Message message : received) { // Reassembled records were not filtered
+                int proposalId = message.getProposalId();
+                if (message.getSenderId() > totalProcesses) {
+                    continue;
+                }
+                if (message.getType() == Message.MessageType.DECIDED_PREFIX) {
+                    onPeerPrefix(message.getSenderId(), proposalId);
+                } else if (proposalId >= releasePrefix && proposalId < limit) {
+                    shards[proposalId % shards.length].deliver(message);
+                }
+            }
+        } catch (IOException e) {
+            metrics.onDecodeFailure();
+            System.err.println("Error in process " + processId + " while listening: " + e.getMessage());
+        }
+        reassembler.sweep(releasePrefix);
     }
 
-    private void handleMessage(Message message) throws IOException {
-        int receiveProposalId = message.getProposalId();
-        switch (message.getType()) {
-            case ACK:
-                handleAck(message);
-                break;
-
-            case NACK:
-                handleNack(message);
-                break;
-
-            case PROPOSAL:
-                handleProposition(message);
-                break;
-        }
-        decide(receiveProposalId);
-        if (ackTracker.canPropose(receiveProposalId)) {
-            propose(receiveProposalId);
+    // A suspected peer talked again: it was sent no rounds while suspected, so every shard resends
+    // the rounds it still owes an answer to
+    private void onPeerRecovered(int hostId) {
+        metrics.onPeerRecovered();
+        for (Shard shard : shards) {
+            shard.execute(() -> shard.resendTo(hostId));
         }
     }
 
-    private void handleAck(Message message) {
-        int proposalId = message.getProposalId();
-        int proposalNb = message.getProposalNb();
-        if (!isValidMessage(proposalId, proposalNb)) {
+    // ACKs relayed up the origin's tree: ours are handed to the shard one acker at a time, others
+    // are merged into what we relay further up
+    private void onRelayAck(int senderId, int origin, int proposalId, int proposalNb, int[] ackers, int count) {
+        if (relayTree == null || origin < 1 || origin > totalProcesses) {
+            return;
+        }
+        if (origin != processId) {
+            batcher.sendRelayAck(relayTree.parent(origin, processId, suspected), origin, proposalId, proposalNb, ackers, count);
             return;
         }
-        ackTracker.addAck(proposalId, message.getSenderId());
+        for (int i = 0; i < count; i++) {
+            if (accept(Message.MessageType.ACK, ackers[i], proposalId, proposalNb)) {
+                shards[proposalId % shards.length].deliver(Message.createAck(ackers[i], proposalId, proposalNb));
+            }
+        }
     }
 
-    private void handleNack(Message message) {
-        int proposalId = message.getProposalId();
-        int proposalNb = message.getProposalNb();
-        if (!isValidMessage(proposalId, proposalNb)) {
-            return;
+    // Drops records from their header: unknown senders, released instances and those beyond the
+    // capacity, and answers to rounds of instances we already decided; shards drop stale rounds
+    private boolean accept(Message.MessageType type, int senderId, int proposalId, int proposalNb) {
+        if (senderId < 1 || senderId > totalProcesses) {
+            return false;
+        }
+        if (type == Message.MessageType.DECIDED_PREFIX) {
+            return true;
         }
-        ackTracker.addNoAck(proposalId, message.getSenderId());
-        synchronized (proposals) {
-            proposals.get(proposalId).addAll(message.getProposalSet());
+        boolean wanted = proposalId >= releasePrefix && proposalId < acceptLimit
+                && ((type != Message.MessageType.ACK && type != Message.MessageType.NACK)
+                || decisionLog == null || proposalId >= decisionLog.getNextId());
+        if (!wanted) {
+            metrics.onStaleMessage();
         }
+        return wanted;
     }
 
-    private void handleProposition(Message message) throws IOException {
-        int proposalId = message.getProposalId();
-        int proposalNb = message.getProposalNb();
-        Set<Integer> receivedProposedValues = message.getProposalSet();
-        int senderId = message.getSenderId();
+    /**
+     * Called by the owning shard once an instance is decided, with a snapshot of the decided value.
+     */
+    void onDecided(int id, LatticeSet value) {
+        if (listener != null) {
+            listener.onLearn(value); // Continuous mode: a learned set, not a decision
+            return;
+        }
+        window.onDecided(id);
+        decisionLog.publish(id, value); // The log thread refills the window once the decided prefix grows
+    }
 
-        synchronized (proposals) {
-            Set<Integer> currentProposal = proposals.get(proposalId);
-            if (receivedProposedValues.containsAll(currentProposal)) {
-                currentProposal.addAll(receivedProposedValues);
-                sendAck(senderId, proposalId, proposalNb);
-            } else {
-                currentProposal.addAll(receivedProposedValues);
-                sendNoAck(senderId, proposalId, proposalNb, currentProposal);
+    // Starts every instance the window and the capacity allow, reading its proposal from the config
+    private synchronized void fillWindow() {
+        updateReleasePrefix();
+        int limit = (int) Math.min(totalInstances, (long) releasePrefix + capacity);
+        int id;
+        while ((id = window.nextToPropose(decisionLog.getNextId(), limit)) >= 0) {
+            LatticeSet value = new LatticeSet(dictionary);
+            try {
+                config.next(value);
+            } catch (IOException e) {
+                System.err.println("Error reading proposal " + id + " in process " + processId + ": " + e.getMessage());
+                return;
             }
+            int proposalId = id;
+            Shard shard = shards[proposalId % shards.length];
+            shard.execute(() -> shard.start(proposalId, value));
         }
     }
 
-    private void decide(int id) throws IOException {
-        if (!ackTracker.canDecide(id) || decided.get(id)) {
+    private synchronized void onPeerPrefix(int hostId, int decidedPrefix) {
+        peerPrefix[hostId - 1] = Math.max(peerPrefix[hostId - 1], decidedPrefix);
+        peerHeardNanos[hostId - 1] = System.nanoTime();
+        updateReleasePrefix();
+    }
+
+    // An instance is released once we output it and every peer we heard from recently decided it.
+    // Messages for released instances are dropped, which is always safe: a silent peer that comes
+    // back may miss our answers for them, but never gets one contradicting what we accepted before.
+    private void updateReleasePrefix() {
+        if (!isBounded()) {
             return;
         }
-        synchronized (decided) {
-            decided.set(id, true);
+        long now = System.nanoTime();
+        long timeout = Constants.RELEASE_PEER_TIMEOUT_MILLIS * 1_000_000L;
+        int prefix = getDecidedPrefix();
+        for (Host host : hosts) {
+            int i = host.getId() - 1;
+            if (host.getId() != processId && now - peerHeardNanos[i] < timeout) {
+                prefix = Math.min(prefix, peerPrefix[i]);
+            }
+        }
+        if (prefix > releasePrefix) {
+            releasePrefix = prefix;
         }
-        ackTracker.removeMessage(id);
-        writeDecision();
     }
 
-    private void propose(int id) {
-        int newProposalNb;
-        synchronized (proposalNb) {
-            newProposalNb = proposalNb.get(id) + 1;
-            proposalNb.set(id, newProposalNb);
-        }
+    private boolean isBounded() {
+        return capacity < totalInstances;
+    }
 
-        Message message;
-        synchronized (proposals) {
-            message = Message.createProposal(processId, id, proposals.get(id), newProposalNb);
+    // With crash recovery, only what reached the output file: a restarted process resumes there
+    private int getDecidedPrefix() {
+        return durable ? decisionLog.getWrittenId() : decisionLog.getNextId();
+    }
+
+    /**
+     * Returns true once every instance is decided and handed to the decision log.
+     */
+    /**
+     * Sets what runs, on the failing shard's thread, when a shard stops on an unexpected error. The
+     * process then never decides that shard's instances, so the owner usually shuts it down.
+     */
+    public void setFailureListener(Consumer<RuntimeException> listener) {
+        this.failureListener = listener;
+    }
+
+    /**
+     * Returns the error that stopped a shard, or null if every shard is running.
+     */
+    public RuntimeException getFailure() {
+        return failure;
+    }
+
+    // Called by a shard whose thread ends on an error
+    void onShardFailed(int shard, RuntimeException e) {
+        System.err.println("Shard " + shard + " of process " + processId + " failed: " + e);
+        e.printStackTrace();
+        if (failure == null) {
+            failure = e;
+        }
+        Consumer<RuntimeException> listener = failureListener;
+        if (listener != null) {
+            listener.accept(e);
         }
+    }
 
-        ackTracker.reset(id);
-        ackTracker.addAck(id, processId); // Self-acknowledge
-        broadcast(message);
+    public boolean isDone() {
+        return decisionLog != null && decisionLog.getNextId() == totalInstances;
     }
 
-    private void retryProposals() {
-        for (int id = currentId; id < proposals.size(); id++) {
-            Set<Integer> pendingHosts = ackTracker.getPendingHostIds(id);
-            for (int hostId : pendingHosts) {
-                int proposalNumber;
-                synchronized (proposalNb) {
-                    proposalNumber = proposalNb.get(id);
-                }
+    /**
+     * Returns the first instance that may still be in memory; shards drop anything below it.
+     */
+    int getReleasePrefix() {
+        return releasePrefix;
+    }
 
-                Message message;
-                synchronized (proposals) {
-                    message = Message.createProposal(processId, id, proposals.get(id), proposalNumber);
-                }
+    /**
+     * Arms a retransmission timer (see {@link Shard#timerKey}) using the peer's current timeout.
+     */
+    void scheduleRetransmit(long timerKey) {
+        int peer = (int) (timerKey >>> 4) & 0xFFF;
+        int attempt = (int) timerKey & 0xF;
+        retransmitTimers.schedule(timerKey, rtt[peer - 1].timeoutNanos(attempt));
+    }
 
-                send(message, hostId);
-            }
-        }
+    /**
+     * Ends the collection delay of the instance after the given time, see {@link Shard#start(int, LatticeSet)}.
+     */
+    void scheduleRelease(int id, long delayNanos) {
+        retransmitTimers.schedule(Shard.timerKey(id, 0, 0, 0), delayNanos); // Peer 0 marks it, no host has that id
     }
 
-    private void sendAck(int senderId, int proposalId, int proposalNb) {
-        Message message = Message.createAck(processId, proposalId, proposalNb);
-        send(message, senderId);
+    // Runs on the wheel thread
+    private void onRetransmitTimeout(long timerKey) {
+        int proposalId = (int) (timerKey >>> 32);
+        shards[proposalId % shards.length].onTimeout(timerKey);
     }
 
-    private void sendNoAck(int senderId, int proposalId, int proposalNb, Set<Integer> proposalSet) {
-        Message message = Message.createNoAck(processId, proposalId, proposalNb, proposalSet);
-        send(message, senderId);
+    /**
+     * Returns true if the failure detector currently suspects the host to have crashed.
+     */
+    boolean isSuspected(int hostId, long now) {
+        return detector != null && detector.isSuspected(hostId, now);
     }
 
-    private void broadcast(Message message) {
-        for (Host host : hosts) {
-            if (host.getId() != processId) { // Skip self
-                send(message, host.getId());
-            }
-        }
+    boolean isRelaying() {
+        return relayTree != null;
     }
 
-    private void send(Message message, int senderId) {
-        try {
-            Host host = hosts.get(senderId - 1);
-            networkSimulator.send(message, host.getAddress(), host.getPort());
-        } catch (Exception e) {
-            System.err.println("Error sending message: " + e.getMessage());
-        }
+    /**
+     * Puts the hosts we forward the origin's rounds to into {@code out}, skipping suspected ones,
+     * and returns how many there are; see {@link RelayTree}.
+     */
+    int getRelayChildren(int origin, int[] out) {
+        return relayTree.children(origin, processId, suspected, out);
     }
 
-    private synchronized void writeDecision() throws IOException {
-        synchronized (decided) {
-            while (currentId < decided.size() && decided.get(currentId)) {
-                Set<Integer> proposal = proposals.get(currentId);
-                String result = String.join(" ", proposal.stream().map(String::valueOf).toArray(String[]::new));
-                writer.write(result + "\n");
-                currentId++;
-            }
-        }
-        writer.flush();
+    /**
+     * Acknowledges a relayed round to our parent in the origin's tree, which merges it with the
+     * rest of its subtree's ACKs.
+     */
+    void sendRelayAck(int origin, int proposalId, int proposalNb) {
+        int[] acker = {processId};
+        batcher.sendRelayAck(relayTree.parent(origin, processId, suspected), origin, proposalId, proposalNb, acker, 1);
     }
 
-    private boolean isValidMessage(int proposalId, int proposalNumber) {
-        synchronized (proposalNb) {
-            return proposalNumber == this.proposalNb.get(proposalId) && !decided.get(proposalId);
+    RttEstimator getRtt(int hostId) {
+        return rtt[hostId - 1];
+    }
+
+    List<Host> getHosts() {
+        return hosts;
+    }
+
+    /**
+     * Continuous mode: runs the task on the shard thread of instance 0.
+     */
+    void execute(Runnable task) {
+        shards[0].execute(task);
+    }
+
+    /**
+     * Continuous mode: adds values to instance 0; must run on its shard thread, see {@link #execute}.
+     */
+    void submit(int[] values, int count) {
+        shards[0].submit(0, values, count);
+    }
+
+    Metrics getMetrics() {
+        return metrics;
+    }
+
+    InstanceWindow getWindow() {
+        return window;
+    }
+
+    void sendAck(int hostId, int proposalId, int proposalNb) {
+        batcher.sendAck(hostId, proposalId, proposalNb);
+    }
+
+    void sendProposal(OutboundQueue.Proposal proposal, int hostId) {
+        batcher.sendProposal(proposal, hostId);
+    }
+
+    void send(Message message, int senderId) {
+        try {
+            batcher.send(message, senderId);
+        } catch (RuntimeException e) {
+            System.err.println("Error sending message: " + e.getMessage());
         }
     }
 
     public void shutdown() throws IOException {
-        retryTimer.cancel();
-        writer.close();
+        if (decisionLog != null) {
+            decisionLog.close(); // First, so that everything decided reaches the file
+        }
+        retransmitTimers.stop();
+        for (Shard shard : shards) {
+            shard.stop();
+        }
+        batcher.close();
+        transport.close();
+        if (config != null) {
+            config.close();
+        }
+        metrics.stop();
     }
 }
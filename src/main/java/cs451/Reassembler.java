@@ -0,0 +1,163 @@
+package cs451;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rebuilds records that peers sent as {@link MessageCodec#FRAGMENT}s, and answers their requests
+ * for fragments of ours.
+ *
+ * Each peer has at most one reassembly per instance and kind (proposal or NACK): a fragment of a
+ * newer record replaces an older, incomplete one, like the newer round it carries. A reassembly
+ * that made no progress for {@code requestNanos} asks the sender for exactly the fragments it
+ * lacks, up to {@code MAX_REQUESTS} times; after that, or if the sender no longer has them, the
+ * proposer's own retransmission resends the whole record. Stalled reassemblies are only found
+ * while datagrams keep arriving, which is when losses happen. Runs on the network thread only.
+ */
+public class Reassembler implements MessageCodec.FragmentSink {
+    private static final int MAX_REQUESTS = 8;
+    private static final int MAX_REQUESTED_INDICES = 256; // Keeps a request within one datagram
+
+    private final DatagramBatcher batcher;
+    private final Metrics metrics;
+    private final int totalProcesses;
+    private final int maxPartials;
+    private final int maxBytes;
+    private final long requestNanos;
+    private final List<Map<Long, Partial>> partials; // Indexed by senderId - 1, keyed by proposalId << 1 | 1 for NACKs
+    private final int[] missing = new int[MAX_REQUESTED_INDICES];
+    private long lastSweepNanos = System.nanoTime();
+
+    public Reassembler(int totalProcesses, DatagramBatcher batcher, Metrics metrics, int maxPartials, int maxBytes,
+                       long requestMicros) {
+        this.batcher = batcher;
+        this.metrics = metrics;
+        this.totalProcesses = totalProcesses;
+        this.maxPartials = Math.max(1, maxPartials);
+        this.maxBytes = maxBytes;
+        this.requestNanos = requestMicros * 1000;
+        this.partials = new ArrayList<>(totalProcesses);
+        for (int i = 0; i < totalProcesses; i++) {
+            partials.add(new HashMap<>());
+        }
+    }
+
+    @Override
+    public void onFragment(int senderId, int seq, int proposalId, boolean nack, int index, int count, int totalLength,
+                           ByteBuffer bytes, List<Message> out) throws IOException {
+        if (senderId < 1 || senderId > totalProcesses) {
+            return;
+        }
+        if (totalLength > maxBytes) {
+            throw new IOException("Fragmented record of " + totalLength + " bytes exceeds " + maxBytes);
+        }
+        Map<Long, Partial> byKey = partials.get(senderId - 1);
+        long key = (long) proposalId << 1 | (nack ? 1 : 0);
+        Partial partial = byKey.get(key);
+        if (partial != null && seq - partial.seq < 0) {
+            return; // Fragment of a record the sender already superseded
+        }
+        if (partial == null || seq != partial.seq) {
+            if (partial == null && byKey.size() >= maxPartials) {
+                evictStalest(byKey);
+            }
+            partial = new Partial(seq, proposalId, count, totalLength);
+            byKey.put(key, partial);
+        } else if (count != partial.count || totalLength != partial.data.length) {
+            throw new IOException("Fragment " + index + " does not match record " + seq + " of sender " + senderId);
+        }
+        if (partial.has[index]) {
+            return; // Duplicate
+        }
+        bytes.get(partial.data, index * MessageCodec.fragmentChunk(totalLength, count), bytes.remaining());
+        partial.has[index] = true;
+        partial.lastProgressNanos = System.nanoTime();
+        partial.requests = 0;
+        if (++partial.received == count) {
+            byKey.remove(key);
+            out.add(MessageCodec.decodeRecord(ByteBuffer.wrap(partial.data)));
+        }
+    }
+
+    @Override
+    public void onFragmentRequest(int senderId, int seq, int[] indices, int count) {
+        if (senderId >= 1 && senderId <= totalProcesses) {
+            batcher.resendFragments(senderId, seq, indices, count);
+        }
+    }
+
+    /**
+     * Drops reassemblies of released instances and requests the missing fragments of stalled ones;
+     * cheap to call on every datagram, it only scans once per request interval.
+     */
+    public void sweep(int releasePrefix) {
+        long now = System.nanoTime();
+        if (now - lastSweepNanos < requestNanos) {
+            return;
+        }
+        lastSweepNanos = now;
+        for (int i = 0; i < totalProcesses; i++) {
+            Iterator<Partial> it = partials.get(i).values().iterator();
+            while (it.hasNext()) {
+                Partial partial = it.next();
+                if (partial.proposalId < releasePrefix || partial.requests >= MAX_REQUESTS) {
+                    it.remove();
+                } else if (now - partial.lastProgressNanos >= requestNanos && now - partial.lastRequestNanos >= requestNanos) {
+                    request(i + 1, partial, now);
+                }
+            }
+        }
+    }
+
+    private void request(int senderId, Partial partial, long now) {
+        int n = 0;
+        for (int index = 0; index < partial.count && n < missing.length; index++) {
+            if (!partial.has[index]) {
+                missing[n++] = index;
+            }
+        }
+        partial.requests++;
+        partial.lastRequestNanos = now;
+        metrics.onFragmentsRequested(n);
+        batcher.requestFragments(senderId, partial.seq, missing, n);
+    }
+
+    private static void evictStalest(Map<Long, Partial> byKey) {
+        Long stalest = null;
+        long oldest = 0;
+        for (Map.Entry<Long, Partial> entry : byKey.entrySet()) {
+            long progress = entry.getValue().lastProgressNanos;
+            if (stalest == null || progress - oldest < 0) {
+                stalest = entry.getKey();
+                oldest = progress;
+            }
+        }
+        byKey.remove(stalest);
+    }
+
+    private static final class Partial {
+        private final int seq;
+        private final int proposalId;
+        private final int count;
+        private final byte[] data;
+        private final boolean[] has;
+        private int received;
+        private int requests; // Sent since the last progress
+        private long lastProgressNanos = System.nanoTime();
+        private long lastRequestNanos;
+
+        private Partial(int seq, int proposalId, int count, int totalLength) {
+            this.seq = seq;
+            this.proposalId = proposalId;
+            this.count = count;
+            this.data = new byte[totalLength];
+            this.has = new boolean[count];
+            this.lastRequestNanos = lastProgressNanos;
+        }
+    }
+}
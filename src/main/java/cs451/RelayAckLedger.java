@@ -0,0 +1,116 @@
+package cs451;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ACKs owed up a {@link RelayTree} to one parent, sent as {@link MessageCodec#RELAY_ACK} records.
+ *
+ * The ACKs of a subtree for the same round merge into one entry listing every acker, so a relay
+ * forwards one record per round however many of its descendants answered. Acknowledging a newer
+ * round of an instance replaces the older entry. Entries are sent once: a lost record is covered
+ * by the origin's retransmissions, which are answered directly. Not thread-safe; the
+ * {@link DatagramBatcher} guards it with the destination's batch monitor.
+ */
+public class RelayAckLedger {
+    private final List<Entry> entries = new ArrayList<>(); // In first-added order
+    private final Map<Long, Entry> byKey = new HashMap<>(); // proposalId << 12 | origin
+    private long firstAddedNanos;
+
+    public void add(int origin, int proposalId, int proposalNb, int[] ackers, int count) {
+        long key = (long) proposalId << 12 | origin;
+        Entry entry = byKey.get(key);
+        if (entry != null && proposalNb < entry.proposalNb) {
+            return; // A newer round is already acknowledged
+        }
+        if (entry == null) {
+            if (entries.isEmpty()) {
+                firstAddedNanos = System.nanoTime();
+            }
+            entry = new Entry(origin, proposalId);
+            entries.add(entry);
+            byKey.put(key, entry);
+        }
+        if (proposalNb > entry.proposalNb) {
+            entry.proposalNb = proposalNb;
+            entry.count = 0;
+        }
+        for (int i = 0; i < count; i++) {
+            entry.add(ackers[i]);
+        }
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    public long getFirstAddedNanos() {
+        return firstAddedNanos;
+    }
+
+    /**
+     * Appends as many entries as fit below {@code limit}, splitting the last one's ackers if needed.
+     * Returns false if entries remain, in which case the caller should continue on an empty datagram.
+     */
+    public boolean encode(ByteBuffer out, int senderId, int limit) {
+        int done = 0;
+        for (Entry entry : entries) {
+            int header = 1 + MessageCodec.varIntSize(senderId) + MessageCodec.varIntSize(entry.origin)
+                    + MessageCodec.varIntSize(entry.proposalId) + MessageCodec.varIntSize(entry.proposalNb) + 2;
+            int budget = limit - out.position() - header;
+            Arrays.sort(entry.ackers, 0, entry.count);
+            int fit = 0;
+            int bytes = 0;
+            while (fit < entry.count) {
+                int delta = fit == 0 ? entry.ackers[0] : entry.ackers[fit] - entry.ackers[fit - 1];
+                if (bytes + MessageCodec.varIntSize(delta) > budget) {
+                    break;
+                }
+                bytes += MessageCodec.varIntSize(delta);
+                fit++;
+            }
+            if (fit == 0) {
+                break;
+            }
+            MessageCodec.putRelayAck(out, senderId, entry.origin, entry.proposalId, entry.proposalNb, entry.ackers, fit);
+            if (fit < entry.count) {
+                System.arraycopy(entry.ackers, fit, entry.ackers, 0, entry.count - fit);
+                entry.count -= fit;
+                break;
+            }
+            byKey.remove((long) entry.proposalId << 12 | entry.origin);
+            done++;
+        }
+        entries.subList(0, done).clear();
+        if (!entries.isEmpty()) {
+            firstAddedNanos = System.nanoTime();
+            return false;
+        }
+        return true;
+    }
+
+    private static final class Entry {
+        private final int origin;
+        private final int proposalId;
+        private int proposalNb;
+        private int[] ackers = new int[4];
+        private int count;
+
+        private Entry(int origin, int proposalId) {
+            this.origin = origin;
+            this.proposalId = proposalId;
+        }
+
+        // Ackers of different subtrees are disjoint; a repeated one only costs a zero delta on the wire
+        private void add(int acker) {
+            if (count == ackers.length) {
+                ackers = Arrays.copyOf(ackers, count * 2);
+            }
+            ackers[count++] = acker;
+        }
+    }
+}
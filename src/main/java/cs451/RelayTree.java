@@ -0,0 +1,73 @@
+package cs451;
+
+import java.util.function.IntPredicate;
+
+/**
+ * Dissemination trees for relayed broadcasts, one per origin, over hosts 1..totalProcesses.
+ *
+ * In the tree of {@code origin}, host {@code h} has rank {@code (h - origin) mod n}; rank 0 is the
+ * origin and the children of rank {@code r} are ranks {@code r * fanout + 1} to
+ * {@code r * fanout + fanout}, so the depth is about log_fanout(n). Since the ranks rotate with the
+ * origin, every host relays for some origins and is a leaf for most of them.
+ *
+ * A skipped host, typically one the {@link FailureDetector} suspects, is replaced by its children
+ * when going down and by its own parent when going up, so a crashed relay does not cut off its
+ * subtree.
+ */
+public class RelayTree {
+    private final int totalProcesses;
+    private final int fanout;
+
+    public RelayTree(int totalProcesses, int fanout) {
+        if (fanout < 1) {
+            throw new IllegalArgumentException("Relay fanout must be positive");
+        }
+        this.totalProcesses = totalProcesses;
+        this.fanout = fanout;
+    }
+
+    /**
+     * Puts the hosts {@code hostId} forwards to in the origin's tree into {@code out}, which must
+     * hold totalProcesses entries, and returns how many there are.
+     */
+    public int children(int origin, int hostId, IntPredicate skip, int[] out) {
+        return addChildren(origin, rank(origin, hostId), skip, out, 0);
+    }
+
+    private int addChildren(int origin, int rank, IntPredicate skip, int[] out, int count) {
+        long first = (long) rank * fanout + 1;
+        for (long child = first; child < first + fanout && child < totalProcesses; child++) {
+            int hostId = host(origin, (int) child);
+            if (skip.test(hostId)) {
+                count = addChildren(origin, (int) child, skip, out, count);
+            } else {
+                out[count++] = hostId;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the host {@code hostId} reports to in the origin's tree: its nearest ancestor that is
+     * not skipped, or the origin itself.
+     */
+    public int parent(int origin, int hostId, IntPredicate skip) {
+        int rank = rank(origin, hostId);
+        while (rank > 0) {
+            rank = (rank - 1) / fanout;
+            int parent = host(origin, rank);
+            if (rank == 0 || !skip.test(parent)) {
+                return parent;
+            }
+        }
+        return origin;
+    }
+
+    private int rank(int origin, int hostId) {
+        return Math.floorMod(hostId - origin, totalProcesses);
+    }
+
+    private int host(int origin, int rank) {
+        return (origin - 1 + rank) % totalProcesses + 1;
+    }
+}
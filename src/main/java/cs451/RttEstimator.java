@@ -0,0 +1,60 @@
+package cs451;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Round-trip time estimate for one peer, following RFC 6298 (SRTT/RTTVAR).
+ *
+ * The retransmission timeout doubles with every retransmission of the same round up to
+ * {@code 2^maxBackoff}, and gets +/-25% jitter so that timers started together do not fire together.
+ */
+public class RttEstimator {
+    private final long minRtoNanos;
+    private final long maxRtoNanos;
+    private final int maxBackoff;
+    private long smoothedRttNanos;
+    private long rttVarianceNanos;
+    private long rtoNanos;
+
+    public RttEstimator(long initialRtoMillis, long minRtoMillis, long maxRtoMillis, int maxBackoff) {
+        this.minRtoNanos = minRtoMillis * 1_000_000L;
+        this.maxRtoNanos = maxRtoMillis * 1_000_000L;
+        this.maxBackoff = maxBackoff;
+        this.rtoNanos = clamp(initialRtoMillis * 1_000_000L);
+    }
+
+    /**
+     * Feeds a round-trip sample; callers must skip retransmitted rounds (Karn's algorithm).
+     */
+    public synchronized void sample(long rttNanos) {
+        if (smoothedRttNanos == 0) {
+            smoothedRttNanos = rttNanos;
+            rttVarianceNanos = rttNanos / 2;
+        } else {
+            rttVarianceNanos = (3 * rttVarianceNanos + Math.abs(smoothedRttNanos - rttNanos)) / 4;
+            smoothedRttNanos = (7 * smoothedRttNanos + rttNanos) / 8;
+        }
+        rtoNanos = clamp(smoothedRttNanos + 4 * rttVarianceNanos);
+    }
+
+    /**
+     * Returns the jittered timeout before retransmission number {@code attempt + 1}.
+     */
+    public long timeoutNanos(int attempt) {
+        long rto;
+        synchronized (this) {
+            rto = rtoNanos;
+        }
+        long backedOff = Math.min(maxRtoNanos, rto << Math.min(attempt, maxBackoff));
+        double jitter = 0.75 + 0.5 * ThreadLocalRandom.current().nextDouble();
+        return (long) (backedOff * jitter);
+    }
+
+    public synchronized long getSmoothedRttNanos() {
+        return smoothedRttNanos;
+    }
+
+    private long clamp(long rto) {
+        return Math.max(minRtoNanos, Math.min(maxRtoNanos, rto));
+    }
+}
@@ -0,0 +1,708 @@
+package cs451;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs the lattice-agreement protocol for the instances with {@code proposalId % shardCount == index}.
+ *
+ * The shard thread is the only one touching its proposal sets, proposal numbers, decided flags
+ * and ack state, so none of them need locks. Other threads hand it decoded messages and tasks
+ * through lock-free queues.
+ *
+ * Per-instance state lives in a fixed number of slots, instance {@code id} using slot
+ * {@code (id / shardCount) % slots}. A slot is recycled, with its sets cleared rather than
+ * reallocated, when a newer instance maps to it; {@link Process} only lets that happen once the
+ * older instance is below the release prefix, and messages for released instances are dropped.
+ *
+ * In continuous mode (see {@link LatticeAgreementEngine}) an instance is never decided: a quorum of
+ * ACKs makes the round's set learned, and a new round starts as soon as the set has grown since.
+ *
+ * With a {@link WriteAheadLog}, every value joined into a set and every new round is logged, and
+ * messages that reveal them wait until the log is committed, once per batch of handled messages.
+ * A restarted process then never answers against less than it accepted before the crash, and never
+ * reuses a round whose answers may still arrive.
+ *
+ * With a collection delay ({@code -Dcs451.propose.collectMicros}), a process starting an instance
+ * first announces its value as round 0, which acceptors join into their accepted set but do not
+ * answer, and only proposes round 1 once every peer it does not suspect proposed or announced, or
+ * after about a round trip. Round 1 then usually holds every value and is ACKed at once, where
+ * processes starting with their own value alone would all meet NACKs and need a second round.
+ *
+ * With a {@link RelayTree}, the first transmission of a round goes to our children in our own
+ * tree only, always as a full proposal, and every process forwards the first copy of a peer's
+ * round down that peer's tree and acknowledges it to its parent there, which merges the ACKs of
+ * its subtree. Retransmissions, and the answers to copies already seen, go straight between the
+ * proposer and the peer, so a lost relay only costs a retransmission. NACKs always go straight back.
+ *
+ * Peers the {@link FailureDetector} suspects are left out of new rounds and retransmissions, which
+ * would only be lost; once such a peer talks again, it is sent every round still waiting for it.
+ */
+public class Shard {
+    private final int index;
+    private final int shardCount;
+    private final int processId;
+    private final int totalProcesses;
+    private final boolean continuous;
+    private final Process process;
+    private final AckTracker ackTracker;
+    private final int slots;
+    private final int[] owner; // Instance occupying each slot, -1 if none yet
+    private final LatticeSet[] proposals; // Accepted and proposed set, allocated on first use of the slot
+    private final LatticeSet received; // Scratch set the incoming proposal set is decoded into
+    private final int[] proposalNb;
+    private final boolean[] decided;
+    private final long[] startNanos; // When we proposed the instance for the first time, 0 if we did not
+    private final int[] learnedNb; // Continuous mode: round that was learned last
+    private final long[] roundStartNanos; // When the current round was broadcast
+    private final boolean[] retransmitted; // Current round was resent, its responses are no RTT sample
+    private final LatticeSet[] lastSent; // Set proposed in the current round, base of the next round's deltas
+    private final boolean[] collecting; // Round 0 announced, round 1 waits for the peers' values
+    private final boolean[] heard; // Peer proposed or announced in the instance, at slot * totalProcesses + peer - 1
+    private final int[] relayTargets; // Scratch list of relay children
+    private final LatticeSet[] peerProposals; // Latest full proposal of each peer, at slot * totalProcesses + peer - 1
+    private final int[] peerProposalNb;
+    private final WriteAheadLog wal; // Null unless crash recovery is enabled
+    private final List<Runnable> deferred = new ArrayList<>(); // Sends waiting for the log to be committed
+    private final Queue<Message> inbox = new ConcurrentLinkedQueue<>();
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private volatile boolean sleeping;
+    private volatile boolean running = true;
+
+    private static final int COMMIT_BATCH = 256; // Messages and tasks handled at most per log commit
+
+    public Shard(int index, int shardCount, int processId, int totalProcesses, boolean continuous, Process process,
+                 ValueDictionary dictionary, int slots, WriteAheadLog wal) {
+        this.index = index;
+        this.shardCount = shardCount;
+        this.processId = processId;
+        this.totalProcesses = totalProcesses;
+        this.continuous = continuous;
+        this.process = process;
+        this.slots = slots;
+        this.owner = new int[slots];
+        Arrays.fill(owner, -1);
+        this.proposals = new LatticeSet[slots];
+        this.ackTracker = new AckTracker(totalProcesses, slots);
+        this.received = new LatticeSet(dictionary);
+        this.proposalNb = new int[slots];
+        this.decided = new boolean[slots];
+        this.startNanos = new long[slots];
+        this.learnedNb = new int[slots];
+        this.roundStartNanos = new long[slots];
+        this.retransmitted = new boolean[slots];
+        this.lastSent = new LatticeSet[slots];
+        this.collecting = new boolean[slots];
+        this.heard = new boolean[slots * totalProcesses];
+        this.relayTargets = new int[totalProcesses];
+        this.peerProposals = new LatticeSet[slots * totalProcesses];
+        this.peerProposalNb = new int[slots * totalProcesses];
+        this.wal = wal;
+        this.thread = new Thread(this::run, "shard-" + index);
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Hands a decoded message to this shard; called from the network thread.
+     */
+    public void deliver(Message message) {
+        inbox.add(message);
+        wakeUp();
+    }
+
+    /**
+     * Handles an expired retransmission timer on the shard thread. The wheel thread only calls this
+     * while the peer still owes a response, so most stale timers never reach the shard. Timers for
+     * peer 0 end a collection delay instead.
+     */
+    public void onTimeout(long timerKey) {
+        int slot = ((int) (timerKey >>> 32) / shardCount) % slots; // May be recycled already, retransmit() checks the owner
+        if (timerPeer(timerKey) == 0) {
+            execute(() -> release((int) (timerKey >>> 32))); // End of a collection delay, see start()
+        } else if (ackTracker.isActive(slot) && !ackTracker.hasAnswered(slot, timerPeer(timerKey))) {
+            execute(() -> retransmit(timerKey));
+        }
+    }
+
+    /**
+     * Runs the task on the shard thread.
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        wakeUp();
+    }
+
+    private void wakeUp() {
+        if (sleeping) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void run() {
+        try {
+            runLoop();
+        } catch (RuntimeException e) {
+            process.onShardFailed(index, e); // Its instances stall from here on, the owner decides what to do
+        }
+    }
+
+    private void runLoop() {
+        while (running) {
+            boolean idle = true;
+            int handled = 0;
+            Message message;
+            while (handled < COMMIT_BATCH && (message = inbox.poll()) != null) {
+                idle = false;
+                handled++;
+                handleMessage(message);
+                snapshotIfFull();
+            }
+            Runnable task;
+            while (handled < COMMIT_BATCH && (task = tasks.poll()) != null) {
+                idle = false;
+                handled++;
+                task.run();
+                snapshotIfFull();
+            }
+            if (wal != null) {
+                persist();
+            }
+            if (idle) {
+                sleeping = true;
+                if (inbox.isEmpty() && tasks.isEmpty()) { // Re-check after publishing the flag, or we could miss a wake-up
+                    LockSupport.park(this);
+                }
+                sleeping = false;
+            }
+        }
+        if (wal != null) {
+            try {
+                wal.close();
+            } catch (IOException e) {
+                System.err.println("Error closing write-ahead log of shard " + index + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the accepted sets and round numbers from the write-ahead log; must run before {@link #start()}.
+     * Recovered instances are answered as an acceptor, the process restarts the undecided ones.
+     */
+    public void recover() throws IOException {
+        wal.replay(new WriteAheadLog.Replayer() {
+            @Override
+            public void onAccept(int id, int[] values) {
+                int slot = slotOf(id);
+                if (slot >= 0) {
+                    proposals[slot].addAll(values);
+                }
+            }
+
+            @Override
+            public void onRound(int id, int round) {
+                int slot = slotOf(id);
+                if (slot >= 0) {
+                    proposalNb[slot] = Math.max(proposalNb[slot], round);
+                }
+            }
+        });
+    }
+
+    // Cuts the batch's group commit short once the log is half full, so that the next message's
+    // records still fit: commits what the batch logged so far, then snapshots
+    private void snapshotIfFull() {
+        if (wal != null && wal.needsSnapshot()) {
+            persist();
+        }
+    }
+
+    // Group commit: one fsync for everything the batch logged, then the sends that depended on it
+    private void persist() {
+        wal.commit();
+        for (Runnable send : deferred) {
+            send.run();
+        }
+        deferred.clear();
+        if (wal.needsSnapshot()) {
+            snapshot();
+        }
+    }
+
+    // Replaces the log with the live state; the log must be committed
+    private void snapshot() {
+        try {
+            wal.beginSnapshot();
+            for (int slot = 0; slot < slots; slot++) {
+                if (owner[slot] >= 0) {
+                    int[] values = proposals[slot].toSortedValues();
+                    wal.logAccept(owner[slot], values, values.length);
+                    wal.logRound(owner[slot], proposalNb[slot]);
+                }
+            }
+            wal.endSnapshot();
+        } catch (IOException e) {
+            System.err.println("Error writing snapshot of shard " + index + ": " + e.getMessage());
+        }
+    }
+
+    // Joins the set into the instance's accepted set, logging the values it adds
+    private void accept(int id, int slot, LatticeSet value) {
+        LatticeSet current = proposals[slot];
+        if (wal != null && !value.isSubsetOf(current)) {
+            int[] added = value.toSortedValuesExcept(current);
+            wal.logAccept(id, added, added.length);
+        }
+        current.join(value);
+    }
+
+    private void handleMessage(Message message) {
+        int receiveProposalId = message.getProposalId();
+        int slot = slotOf(receiveProposalId);
+        if (slot < 0) {
+            return; // Released instance
+        }
+        try {
+            switch (message.getType()) {
+                case ACK:
+                    handleAck(message, slot);
+                    break;
+
+                case NACK:
+                    handleNack(message, slot);
+                    break;
+
+                case PROPOSAL:
+                case PROPOSAL_DELTA:
+                    handleProposition(message, slot);
+                    if (collecting[slot] && hasHeardAll(slot)) {
+                        release(receiveProposalId);
+                    }
+                    break;
+            }
+        } catch (IllegalArgumentException e) {
+            // The set overflows the value dictionary: the peer proposes more values than the config allows
+            System.err.println("Dropping message from process " + message.getSenderId() + ": " + e.getMessage());
+            process.getMetrics().onDecodeFailure();
+            return;
+        }
+        decide(receiveProposalId, slot);
+        if (ackTracker.canPropose(slot)) {
+            propose(receiveProposalId, slot);
+        } else if (continuous) {
+            proposeIfGrown(receiveProposalId, slot); // Learns what the peers' proposals made us accept
+        }
+    }
+
+    // Returns the slot of the instance, recycling the slot of an older, released one, or -1 if the instance is released
+    private int slotOf(int id) {
+        int slot = (id / shardCount) % slots;
+        int current = owner[slot];
+        if (current == id) {
+            return slot;
+        }
+        if (current > id || id < process.getReleasePrefix()) {
+            return -1;
+        }
+        owner[slot] = id;
+        if (proposals[slot] == null) {
+            proposals[slot] = new LatticeSet(received.getDictionary());
+        } else {
+            proposals[slot].clear();
+        }
+        proposalNb[slot] = 0;
+        startNanos[slot] = 0;
+        learnedNb[slot] = 0;
+        decided[slot] = false;
+        retransmitted[slot] = false;
+        lastSent[slot] = null;
+        collecting[slot] = false;
+        Arrays.fill(heard, slot * totalProcesses, (slot + 1) * totalProcesses, false);
+        Arrays.fill(peerProposalNb, slot * totalProcesses, (slot + 1) * totalProcesses, 0);
+        ackTracker.removeMessage(slot);
+        return slot;
+    }
+
+    private void handleAck(Message message, int slot) {
+        if (!isValidMessage(slot, message.getProposalNb())) {
+            return;
+        }
+        ackTracker.addAck(slot, message.getSenderId());
+        sampleRtt(slot, message.getSenderId());
+        FlightEvents.response(processId, message.getProposalId(), message.getProposalNb(), message.getSenderId(), false);
+    }
+
+    private void handleNack(Message message, int slot) {
+        if (!isValidMessage(slot, message.getProposalNb())) {
+            return;
+        }
+        ackTracker.addNoAck(slot, message.getSenderId());
+        sampleRtt(slot, message.getSenderId());
+        FlightEvents.response(processId, message.getProposalId(), message.getProposalNb(), message.getSenderId(), true);
+        message.readProposalSet(received);
+        accept(message.getProposalId(), slot, received);
+    }
+
+    private void handleProposition(Message message, int slot) {
+        int proposalId = message.getProposalId();
+        int proposalNb = message.getProposalNb();
+        int senderId = message.getSenderId();
+        int peer = slot * totalProcesses + senderId - 1;
+        boolean first = proposalNb > peerProposalNb[peer] || proposalNb == 0 && !heard[peer];
+        heard[peer] = true;
+        if (proposalNb < peerProposalNb[peer]) {
+            process.getMetrics().onStaleMessage(); // The sender moved on to a newer round and ignores answers to this one
+            return;
+        }
+        // The first copy of a round came down the sender's tree, or was meant to: pass it on, answer up the tree
+        boolean relayed = first && process.isRelaying() && message.getType() == Message.MessageType.PROPOSAL;
+        if (relayed) {
+            int count = process.getRelayChildren(senderId, relayTargets);
+            for (int i = 0; i < count; i++) {
+                process.send(message, relayTargets[i]); // The record keeps the proposer as sender; our datagrams name us
+            }
+            process.getMetrics().onRelayed(count);
+        }
+
+        LatticeSet proposedSet = readProposedSet(message, slot);
+        if (proposedSet == null) {
+            return; // Delta against a round we never saw; the proposer's retransmission carries the full set
+        }
+        LatticeSet currentProposal = proposals[slot];
+        boolean containsAll = proposedSet.containsAll(currentProposal);
+        accept(proposalId, slot, proposedSet);
+        if (proposalNb == 0) {
+            return; // An announcement, see announce(): joined but not answered
+        }
+        if (containsAll && relayed) {
+            sendRelayAck(senderId, proposalId, proposalNb);
+        } else if (containsAll) {
+            sendAck(senderId, proposalId, proposalNb);
+        } else {
+            sendNoAck(senderId, proposalId, proposalNb, currentProposal, proposedSet);
+        }
+    }
+
+    // Rebuilds the full proposed set, remembering the sender's latest proposal as the base of its next delta
+    private LatticeSet readProposedSet(Message message, int instanceSlot) {
+        int slot = instanceSlot * totalProcesses + message.getSenderId() - 1;
+        int proposalNb = message.getProposalNb();
+        LatticeSet stored = peerProposals[slot];
+
+        if (message.getType() == Message.MessageType.PROPOSAL) {
+            message.readProposalSet(received);
+            if (proposalNb > peerProposalNb[slot]) {
+                if (stored == null) {
+                    stored = new LatticeSet(received.getDictionary());
+                    peerProposals[slot] = stored;
+                }
+                stored.clear();
+                stored.join(received);
+                peerProposalNb[slot] = proposalNb;
+            }
+            return received;
+        }
+
+        if (stored != null && peerProposalNb[slot] == proposalNb) {
+            return stored; // Duplicate of a delta we already applied
+        }
+        if (stored == null || peerProposalNb[slot] != message.getBaseProposalNb()) {
+            return null;
+        }
+        message.addProposalSetTo(stored);
+        peerProposalNb[slot] = proposalNb;
+        return stored;
+    }
+
+    private void decide(int id, int slot) {
+        if (!ackTracker.canDecide(slot) || decided[slot]) {
+            return;
+        }
+        ackTracker.removeMessage(slot);
+        long latencyNanos = System.nanoTime() - startNanos[slot];
+        process.getMetrics().onDecided(latencyNanos, proposalNb[slot] - learnedNb[slot]);
+        // The quorum acknowledged exactly the set sent in this round; our own set may have grown
+        // since, from NACKs and other proposals, and deciding that would not be safe
+        LatticeSet value = lastSent[slot];
+        FlightEvents.decision(processId, id, proposalNb[slot] - learnedNb[slot], latencyNanos, value.size());
+        if (!continuous) {
+            decided[slot] = true;
+            process.onDecided(id, value);
+            return;
+        }
+        learnedNb[slot] = proposalNb[slot];
+        process.onDecided(id, value);
+        proposeIfGrown(id, slot);
+    }
+
+    /**
+     * Continuous mode: joins submitted values into the instance and proposes them, unless a round
+     * is in flight, in which case they go out with the next one; must run on the shard thread.
+     */
+    public void submit(int id, int[] values, int count) {
+        int slot = slotOf(id);
+        if (slot < 0) {
+            return;
+        }
+        LatticeSet proposal = proposals[slot];
+        int added = 0;
+        for (int i = 0; i < count; i++) {
+            if (proposal.add(values[i]) && wal != null) {
+                values[added++] = values[i]; // Compacts the added values in place for the log
+            }
+        }
+        if (added > 0) {
+            Arrays.sort(values, 0, added);
+            wal.logAccept(id, values, added);
+        }
+        proposeIfGrown(id, slot);
+    }
+
+    // Continuous mode: starts a round if none is in flight and the set grew since the last one
+    private void proposeIfGrown(int id, int slot) {
+        if (ackTracker.isActive(slot) || proposals[slot].isEmpty()
+                || (lastSent[slot] != null && proposals[slot].isSubsetOf(lastSent[slot]))) {
+            return;
+        }
+        if (proposalNb[slot] == learnedNb[slot]) {
+            startNanos[slot] = System.nanoTime(); // First round since the last learned one
+        }
+        propose(id, slot);
+    }
+
+    /**
+     * Joins our own proposal for the instance into whatever we already accepted and proposes the
+     * result; must run on the shard thread.
+     */
+    public void start(int id, LatticeSet value) {
+        int slot = slotOf(id);
+        if (slot < 0) {
+            return;
+        }
+        accept(id, slot, value);
+        startNanos[slot] = System.nanoTime();
+        if (Constants.PROPOSE_COLLECT_MICROS > 0 && !continuous && proposalNb[slot] == 0 && !hasHeardAll(slot)) {
+            announce(id, slot);
+            return;
+        }
+        propose(id, slot);
+    }
+
+    // Sends what we accepted so far as round 0 and waits, at most a round trip to the slowest peer
+    private void announce(int id, int slot) {
+        OutboundQueue.Proposal announcement = new OutboundQueue.Proposal(processId, id, 0, proposals[slot].snapshot());
+        long now = System.nanoTime();
+        long rttNanos = 0;
+        for (Host host : process.getHosts()) {
+            int hostId = host.getId();
+            if (hostId != processId && !process.isSuspected(hostId, now)) {
+                if (!process.isRelaying()) {
+                    sendProposal(announcement, hostId); // Replaced by round 1 if still queued by then
+                }
+                rttNanos = Math.max(rttNanos, process.getRtt(hostId).getSmoothedRttNanos());
+            }
+        }
+        if (process.isRelaying()) {
+            sendDownTree(announcement);
+        }
+        collecting[slot] = true;
+        long maxNanos = Constants.PROPOSE_COLLECT_MICROS * 1000;
+        process.scheduleRelease(id, rttNanos > 0 ? Math.min(rttNanos, maxNanos) : maxNanos);
+    }
+
+    private boolean hasHeardAll(int slot) {
+        long now = System.nanoTime();
+        for (Host host : process.getHosts()) {
+            int hostId = host.getId();
+            if (hostId != processId && !heard[slot * totalProcesses + hostId - 1] && !process.isSuspected(hostId, now)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Ends the collection delay of the instance, if still running, by proposing what we accepted since
+    private void release(int id) {
+        int slot = slotOf(id);
+        if (slot < 0 || !collecting[slot]) {
+            return;
+        }
+        collecting[slot] = false;
+        propose(id, slot);
+    }
+
+    // Starts a new round for the instance
+    private void propose(int id, int slot) {
+        int baseProposalNb = proposalNb[slot];
+        int newProposalNb = ++proposalNb[slot];
+        LatticeSet proposal = proposals[slot];
+        if (wal != null) {
+            wal.logRound(id, newProposalNb);
+        }
+
+        // Peers that answered the previous round hold its set and only need what was added since
+        Message delta = lastSent[slot] == null || process.isRelaying() ? null
+                : Message.createProposalDelta(processId, id, proposal, newProposalNb, lastSent[slot], baseProposalNb);
+        LatticeSet sent = proposal.snapshot();
+        OutboundQueue.Proposal full = null; // Values only listed if some peer still needs them at flush time
+        long now = System.nanoTime();
+        if (process.isRelaying()) {
+            sendDownTree(new OutboundQueue.Proposal(processId, id, newProposalNb, sent)); // Relays pass it on to the rest
+        } else {
+            for (Host host : process.getHosts()) {
+                int hostId = host.getId();
+                if (hostId == processId || process.isSuspected(hostId, now)) {
+                    continue; // Skip self, and suspected peers until they talk again (see resendTo)
+                }
+                if (delta != null && ackTracker.hasAnswered(slot, hostId)) {
+                    send(delta, hostId);
+                } else {
+                    if (full == null) {
+                        full = new OutboundQueue.Proposal(processId, id, newProposalNb, sent);
+                    }
+                    sendProposal(full, hostId);
+                }
+            }
+        }
+        lastSent[slot] = sent;
+        FlightEvents.round(processId, id, newProposalNb, sent.size(), delta != null);
+
+        ackTracker.reset(slot);
+        ackTracker.addAck(slot, processId); // Self-acknowledge
+
+        roundStartNanos[slot] = System.nanoTime();
+        retransmitted[slot] = false;
+        for (Host host : process.getHosts()) {
+            if (host.getId() != processId && !process.isSuspected(host.getId(), now)) {
+                process.scheduleRetransmit(timerKey(id, newProposalNb, host.getId(), 0));
+            }
+        }
+    }
+
+    // Sends our round or announcement to our children in our own relay tree
+    private void sendDownTree(OutboundQueue.Proposal proposal) {
+        int count = process.getRelayChildren(processId, relayTargets);
+        for (int i = 0; i < count; i++) {
+            sendProposal(proposal, relayTargets[i]);
+        }
+    }
+
+    // Resends the round to a peer that did not answer in time, then backs off the next timeout
+    private void retransmit(long timerKey) {
+        int id = (int) (timerKey >>> 32);
+        int slot = (id / shardCount) % slots;
+        int peer = timerPeer(timerKey);
+        if (owner[slot] != id || decided[slot] || (proposalNb[slot] & 0xFFFF) != timerRound(timerKey) || ackTracker.hasAnswered(slot, peer)) {
+            return; // Decided, superseded by a newer round, or answered in the meantime
+        }
+        if (process.isSuspected(peer, System.nanoTime())) {
+            // Probably crashed: resending would only feed the window a false congestion signal, the
+            // round is resent by resendTo if the peer talks again
+            process.getMetrics().onSuppressedRetransmit();
+            return;
+        }
+        retransmitted[slot] = true;
+        process.getWindow().onRetransmit();
+        process.getMetrics().onRetransmit();
+        FlightEvents.retransmit(processId, id, proposalNb[slot], peer, timerAttempt(timerKey) + 1);
+        // Exactly the round's set, ACKs must not cover values it did not propose; replaces the
+        // round if still queued, and the set is only listed when the batch is sent
+        sendProposal(new OutboundQueue.Proposal(processId, id, proposalNb[slot], lastSent[slot]), peer);
+        process.scheduleRetransmit(timerKey(id, proposalNb[slot], peer, timerAttempt(timerKey) + 1));
+    }
+
+    /**
+     * Resends the current round of every instance that still waits for the host, which was
+     * suspected and just talked again; must run on the shard thread.
+     */
+    public void resendTo(int hostId) {
+        for (int slot = 0; slot < slots; slot++) {
+            int id = owner[slot];
+            if (id < process.getReleasePrefix() || decided[slot] || !ackTracker.isActive(slot) || ackTracker.hasAnswered(slot, hostId)) {
+                continue;
+            }
+            retransmitted[slot] = true; // The round started long before this send, its answer is no RTT sample
+            sendProposal(new OutboundQueue.Proposal(processId, id, proposalNb[slot], lastSent[slot]), hostId);
+            process.scheduleRetransmit(timerKey(id, proposalNb[slot], hostId, 0));
+        }
+    }
+
+    private void sampleRtt(int slot, int senderId) {
+        if (!retransmitted[slot]) { // Karn's algorithm: ambiguous samples are dropped
+            process.getRtt(senderId).sample(System.nanoTime() - roundStartNanos[slot]);
+        }
+    }
+
+    // Timer key layout: proposalId (32 bits) | round (16 bits) | peer (12 bits) | attempt (4 bits)
+    static long timerKey(int proposalId, int round, int peer, int attempt) {
+        return ((long) proposalId << 32) | ((long) (round & 0xFFFF) << 16) | ((peer & 0xFFF) << 4) | Math.min(attempt, 0xF);
+    }
+
+    private static int timerRound(long timerKey) {
+        return (int) (timerKey >>> 16) & 0xFFFF;
+    }
+
+    private static int timerPeer(long timerKey) {
+        return (int) (timerKey >>> 4) & 0xFFF;
+    }
+
+    private static int timerAttempt(long timerKey) {
+        return (int) timerKey & 0xF;
+    }
+
+    private void sendAck(int senderId, int proposalId, int proposalNb) {
+        if (wal != null && wal.isDirty()) {
+            deferred.add(() -> process.sendAck(senderId, proposalId, proposalNb));
+        } else {
+            process.sendAck(senderId, proposalId, proposalNb); // Cumulative, piggybacked on the next datagrams
+        }
+    }
+
+    private void sendRelayAck(int origin, int proposalId, int proposalNb) {
+        if (wal != null && wal.isDirty()) {
+            deferred.add(() -> process.sendRelayAck(origin, proposalId, proposalNb));
+        } else {
+            process.sendRelayAck(origin, proposalId, proposalNb); // Merged with our subtree's by our parent
+        }
+    }
+
+    private void sendNoAck(int senderId, int proposalId, int proposalNb, LatticeSet proposalSet, LatticeSet receivedSet) {
+        send(Message.createNoAck(processId, proposalId, proposalNb, proposalSet, receivedSet), senderId);
+    }
+
+    // Sends right away unless the log holds uncommitted records the message may depend on
+    private void send(Message message, int hostId) {
+        if (wal != null && wal.isDirty()) {
+            deferred.add(() -> process.send(message, hostId));
+        } else {
+            process.send(message, hostId);
+        }
+    }
+
+    private void sendProposal(OutboundQueue.Proposal proposal, int hostId) {
+        if (wal != null && wal.isDirty()) {
+            deferred.add(() -> process.sendProposal(proposal, hostId));
+        } else {
+            process.sendProposal(proposal, hostId);
+        }
+    }
+
+    private boolean isValidMessage(int slot, int proposalNumber) {
+        if (proposalNumber == proposalNb[slot] && !decided[slot]) {
+            return true;
+        }
+        process.getMetrics().onStaleMessage();
+        return false;
+    }
+}
@@ -0,0 +1,106 @@
+package cs451;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs one {@link Process} per config file inside this JVM, connected by a {@link SimulatedNetwork}.
+ *
+ * Usage: {@code java -cp bin/da_proc.jar cs451.SimulatedCluster OUTPUT_DIR CONFIG...}; process i
+ * (1-based) reads the i-th config and writes {@code OUTPUT_DIR/i.output}. Links follow the
+ * -Dcs451.sim.* properties. Waits until every process decided all of its instances, then prints
+ * the elapsed time and network counters.
+ */
+public class SimulatedCluster {
+    private final SimulatedNetwork network;
+    private final List<Process> processes = new ArrayList<>();
+
+    public SimulatedCluster(SimulatedNetwork network, String outputDir, List<String> configFiles) throws IOException {
+        this.network = network;
+        List<Host> hosts = new ArrayList<>();
+        for (int i = 1; i <= configFiles.size(); i++) {
+            hosts.add(new Host(i, "localhost", 11000 + i)); // Never bound, only identifies the node
+        }
+        for (Host host : hosts) {
+            ConfigReader config = new ConfigReader(configFiles.get(host.getId() - 1));
+            ValueDictionary dictionary = new ValueDictionary(config.getMaxDistinctElements(), config.getMaxDictionarySize());
+            String output = Paths.get(outputDir, host.getId() + ".output").toString();
+            processes.add(new Process(host.getId(), hosts.size(), host, hosts, output, dictionary, config,
+                    network.transport(host)));
+        }
+    }
+
+    public void start() throws IOException {
+        for (Process process : processes) {
+            process.start();
+        }
+    }
+
+    /**
+     * Returns the error that stopped a shard of some process, or null.
+     */
+    public RuntimeException getFailure() {
+        for (Process process : processes) {
+            if (process.getFailure() != null) {
+                return process.getFailure();
+            }
+        }
+        return null;
+    }
+
+    public boolean isDone() {
+        for (Process process : processes) {
+            if (!process.isDone()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void shutdown() {
+        for (Process process : processes) {
+            try {
+                process.shutdown();
+            } catch (IOException e) {
+                System.err.println("Error during shutdown: " + e.getMessage());
+            }
+        }
+        network.close();
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: java -cp da_proc.jar cs451.SimulatedCluster OUTPUT_DIR CONFIG...");
+            return;
+        }
+        List<String> configs = List.of(args).subList(1, args.length);
+        SimulatedNetwork network = new SimulatedNetwork(Constants.SIM_SEED, LinkProfile.fromProperties(),
+                Constants.SIM_RECEIVE_BUFFER_BYTES);
+        for (Map.Entry<Object, Object> property : System.getProperties().entrySet()) {
+            String key = property.getKey().toString();
+            if (key.startsWith("cs451.sim.link.")) {
+                String[] ends = key.substring("cs451.sim.link.".length()).split("-");
+                network.setLink(Integer.parseInt(ends[0]), Integer.parseInt(ends[1]),
+                        LinkProfile.fromProperties().with(property.getValue().toString()));
+            }
+        }
+
+        SimulatedCluster cluster = new SimulatedCluster(network, args[0], configs);
+        long start = System.nanoTime();
+        cluster.start();
+        while (!cluster.isDone() && cluster.getFailure() == null) {
+            Thread.sleep(10);
+        }
+        long elapsed = System.nanoTime() - start;
+        cluster.shutdown();
+        if (cluster.getFailure() != null) {
+            System.err.println("A process failed: " + cluster.getFailure());
+            System.exit(1);
+        }
+        System.out.printf("%d processes decided in %.3f s, %d datagrams sent, %d dropped%n",
+                configs.size(), elapsed / 1e9, network.getSent(), network.getDropped());
+    }
+}
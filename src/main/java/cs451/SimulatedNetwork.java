@@ -0,0 +1,178 @@
+package cs451;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-JVM network connecting {@link SimulatedTransport}s, for running a whole cluster in one process.
+ *
+ * Every datagram goes through the {@link LinkProfile} of its (sender, receiver) link, which decides
+ * whether it is lost and when it arrives; all random draws come from a single generator seeded by
+ * the caller. Datagrams are delivered in arrival-time order by one delivery thread, which therefore
+ * plays the role of every node's receive loop.
+ *
+ * Datagrams in flight are copied out of the sender's pooled packet into exactly sized heap buffers.
+ * Like a socket receive buffer, each node accepts at most {@code receiveBufferBytes} of in-flight
+ * datagrams (each charged {@code DATAGRAM_OVERHEAD} extra bytes) and drops the rest, so an
+ * overloaded cluster loses datagrams instead of queueing them without bound.
+ */
+public class SimulatedNetwork {
+    private static final int DATAGRAM_OVERHEAD = 768; // Roughly the kernel's per-datagram bookkeeping
+
+    private final Random random; // Guarded by this
+    private final LinkProfile defaultProfile;
+    private final int receiveBufferBytes;
+    private final Map<Integer, Integer> queuedBytes = new HashMap<>(); // Guarded by this, per receiving node
+    private final Map<Long, Link> links = new HashMap<>(); // Guarded by this, key from << 32 | to
+    private final PriorityQueue<Delivery> pending = new PriorityQueue<>(); // Guarded by this
+    private final Map<Integer, SimulatedTransport> nodes = new ConcurrentHashMap<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+    private long sequence; // Ties broken in send order
+    private long sent;
+    private long dropped;
+
+    public SimulatedNetwork(long seed, LinkProfile defaultProfile, int receiveBufferBytes) {
+        this.random = new Random(seed);
+        this.defaultProfile = defaultProfile;
+        this.receiveBufferBytes = receiveBufferBytes;
+        this.thread = new Thread(this::run, "simulated-network");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Returns the transport of the given host, creating it on first use.
+     */
+    public SimulatedTransport transport(Host host) {
+        return nodes.computeIfAbsent(host.getId(), id -> new SimulatedTransport(this, id));
+    }
+
+    /**
+     * Overrides the profile of the link from one host to another.
+     */
+    public synchronized void setLink(int fromId, int toId, LinkProfile profile) {
+        link(fromId, toId).profile = profile;
+    }
+
+    public synchronized long getSent() {
+        return sent;
+    }
+
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    public void close() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    // Takes ownership of the packet, which is flipped and addressed
+    void submit(OutboundPacket packet, int fromId) {
+        int toId = packet.target.getId();
+        byte[] datagram = new byte[packet.buffer.remaining()];
+        packet.buffer.get(datagram);
+        packet.release();
+        boolean wake;
+        synchronized (this) {
+            sent++;
+            Link link = link(fromId, toId);
+            LinkProfile profile = link.profile;
+            long now = System.nanoTime();
+            long departure = now;
+            long transmission = profile.transmissionNanos(datagram.length);
+            if (transmission > 0) {
+                departure = Math.max(now, link.busyUntilNanos);
+                if (departure - now > profile.getQueueNanos()) {
+                    dropped++; // Tail drop, the link's queue is full
+                    return;
+                }
+                departure += transmission;
+                link.busyUntilNanos = departure;
+            }
+            int charge = datagram.length + DATAGRAM_OVERHEAD;
+            int queued = queuedBytes.getOrDefault(toId, 0);
+            if (profile.drops(random) || queued + charge > receiveBufferBytes) {
+                dropped++;
+                return;
+            }
+            queuedBytes.put(toId, queued + charge);
+            Delivery delivery = new Delivery(departure + profile.sampleDelayNanos(random), sequence++, datagram, toId);
+            pending.add(delivery);
+            wake = pending.peek() == delivery;
+        }
+        if (wake) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private Link link(int fromId, int toId) {
+        return links.computeIfAbsent((long) fromId << 32 | toId, key -> new Link(defaultProfile));
+    }
+
+    private void run() {
+        while (running) {
+            Delivery next;
+            long wait;
+            synchronized (this) {
+                next = pending.peek();
+                wait = next == null ? Long.MAX_VALUE : next.deliverAtNanos - System.nanoTime();
+                if (wait <= 0) {
+                    pending.poll();
+                    queuedBytes.merge(next.toId, -(next.datagram.length + DATAGRAM_OVERHEAD), Integer::sum);
+                }
+            }
+            if (wait > 0) {
+                if (next == null) {
+                    LockSupport.park(this);
+                } else {
+                    LockSupport.parkNanos(this, wait);
+                }
+                continue;
+            }
+            SimulatedTransport node = nodes.get(next.toId);
+            try {
+                if (node != null) {
+                    node.receive(ByteBuffer.wrap(next.datagram));
+                }
+            } catch (RuntimeException e) {
+                System.err.println("Error delivering simulated datagram to " + next.toId + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static final class Link {
+        private LinkProfile profile;
+        private long busyUntilNanos; // End of the last datagram's transmission
+
+        private Link(LinkProfile profile) {
+            this.profile = profile;
+        }
+    }
+
+    private static final class Delivery implements Comparable<Delivery> {
+        private final long deliverAtNanos;
+        private final long sequence;
+        private final byte[] datagram;
+        private final int toId;
+
+        private Delivery(long deliverAtNanos, long sequence, byte[] datagram, int toId) {
+            this.deliverAtNanos = deliverAtNanos;
+            this.sequence = sequence;
+            this.datagram = datagram;
+            this.toId = toId;
+        }
+
+        @Override
+        public int compareTo(Delivery other) {
+            int byTime = Long.compare(deliverAtNanos - other.deliverAtNanos, 0); // nanoTime may wrap
+            return byTime != 0 ? byTime : Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package cs451;
+
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/**
+ * One node's endpoint on a {@link SimulatedNetwork}; obtained from {@link SimulatedNetwork#transport(Host)}.
+ */
+public class SimulatedTransport implements Transport {
+    private static final int MAX_POOLED_BUFFERS = 1024;
+
+    private final SimulatedNetwork network;
+    private final int hostId;
+    private final OutboundPacket.Pool pool = new OutboundPacket.Pool(MAX_POOLED_BUFFERS);
+    private volatile Consumer<ByteBuffer> receiver; // Null until started and after close
+
+    SimulatedTransport(SimulatedNetwork network, int hostId) {
+        this.network = network;
+        this.hostId = hostId;
+    }
+
+    /**
+     * Starts delivering datagrams to the receiver, on the network's delivery thread; anything that
+     * arrived before is lost, as it would be on a socket that is not bound yet.
+     */
+    @Override
+    public void start(Consumer<ByteBuffer> receiver) {
+        this.receiver = receiver;
+    }
+
+    @Override
+    public OutboundPacket acquire() {
+        return pool.acquire();
+    }
+
+    @Override
+    public void send(OutboundPacket packet, Host host) {
+        packet.buffer.flip();
+        packet.target = host;
+        network.submit(packet, hostId);
+    }
+
+    @Override
+    public void close() {
+        receiver = null;
+    }
+
+    // Called on the delivery thread
+    void receive(ByteBuffer datagram) {
+        Consumer<ByteBuffer> current = receiver;
+        if (current != null) {
+            current.accept(datagram);
+        }
+    }
+}
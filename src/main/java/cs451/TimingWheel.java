@@ -0,0 +1,116 @@
+package cs451;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongConsumer;
+
+/**
+ * Hashed timing wheel for retransmission deadlines.
+ *
+ * A timer is just a long key and a deadline; keys are stored in primitive per-bucket arrays so
+ * scheduling does not allocate. Timers are never cancelled: the handler receives every expired
+ * key on the wheel thread and is expected to ignore the ones that are no longer relevant.
+ */
+public class TimingWheel {
+    private final long tickNanos;
+    private final Bucket[] buckets;
+    private final int mask;
+    private final LongConsumer handler;
+    private final long startNanos = System.nanoTime();
+    private final Thread thread;
+    private volatile long processedTick;
+    private volatile boolean running = true;
+    private long[] expired = new long[64]; // Only used on the wheel thread
+
+    public TimingWheel(long tickMicros, int bucketCount, LongConsumer handler) {
+        this.tickNanos = Math.max(1, tickMicros) * 1000;
+        int size = Integer.highestOneBit(Math.max(2, bucketCount) - 1) << 1;
+        this.buckets = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            buckets[i] = new Bucket();
+        }
+        this.mask = size - 1;
+        this.handler = handler;
+        this.thread = new Thread(this::run, "timing-wheel");
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Fires {@code key} after at least {@code delayNanos}, rounded up to the next tick.
+     */
+    public void schedule(long key, long delayNanos) {
+        long deadline = (System.nanoTime() - startNanos + delayNanos + tickNanos - 1) / tickNanos;
+        while (true) {
+            Bucket bucket = buckets[(int) (deadline & mask)];
+            synchronized (bucket) {
+                // Checked under the bucket lock: the wheel marks a tick processed before locking its bucket
+                long processed = processedTick;
+                if (deadline > processed) {
+                    bucket.add(key, deadline);
+                    return;
+                }
+                deadline = processed + 1;
+            }
+        }
+    }
+
+    private void run() {
+        while (running) {
+            long now = (System.nanoTime() - startNanos) / tickNanos;
+            while (processedTick < now) {
+                long tick = processedTick + 1;
+                processedTick = tick;
+                int count = buckets[(int) (tick & mask)].expire(tick, this);
+                for (int i = 0; i < count; i++) {
+                    handler.accept(expired[i]);
+                }
+            }
+            LockSupport.parkNanos(tickNanos);
+        }
+    }
+
+    private static final class Bucket {
+        private long[] keys = new long[16];
+        private long[] deadlines = new long[16];
+        private int size;
+
+        private void add(long key, long deadline) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                deadlines = Arrays.copyOf(deadlines, size * 2);
+            }
+            keys[size] = key;
+            deadlines[size] = deadline;
+            size++;
+        }
+
+        // Moves the keys due at or before tick into the wheel's expired array and returns their count
+        private synchronized int expire(long tick, TimingWheel wheel) {
+            int count = 0;
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                if (deadlines[i] <= tick) {
+                    if (count == wheel.expired.length) {
+                        wheel.expired = Arrays.copyOf(wheel.expired, count * 2);
+                    }
+                    wheel.expired[count++] = keys[i];
+                } else {
+                    keys[kept] = keys[i];
+                    deadlines[kept] = deadlines[i];
+                    kept++;
+                }
+            }
+            size = kept;
+            return count;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package cs451;
+
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/**
+ * Datagram transport between the processes: {@link UdpTransport} over real sockets, or
+ * {@link SimulatedTransport} when the whole cluster runs inside one JVM.
+ *
+ * Senders fill a pooled {@link OutboundPacket} and hand it over with {@link #send(OutboundPacket, Host)};
+ * delivery is best effort, like UDP.
+ */
+public interface Transport {
+    int MAX_PACKET_SIZE = 8192; // Maximum size for UDP packets
+
+    /**
+     * Starts delivering incoming datagrams to the receiver, always from the same thread. The buffer
+     * is only valid for the duration of the call.
+     */
+    void start(Consumer<ByteBuffer> receiver);
+
+    /**
+     * Returns an empty pooled buffer of MAX_PACKET_SIZE bytes to encode a datagram into.
+     */
+    OutboundPacket acquire();
+
+    /**
+     * Queues the bytes written to the packet (up to its position) for the given host.
+     * Ownership of the packet passes to the transport, which returns it to the pool once sent.
+     */
+    void send(OutboundPacket packet, Host host);
+
+    /**
+     * Encodes the message as a datagram of its own and sends it.
+     */
+    default void send(Message message, Host host) {
+        OutboundPacket packet = acquire();
+        try {
+            // Throws if the message size exceeds the maximum allowed
+            MessageCodec.encode(message, packet.buffer());
+        } catch (IllegalArgumentException e) {
+            packet.release();
+            throw e;
+        }
+        send(packet, host);
+    }
+
+    void close();
+}
@@ -0,0 +1,132 @@
+package cs451;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * UDP transport built on a single non-blocking {@link DatagramChannel} used for both sending and
+ * receiving. One event-loop thread reads incoming datagrams until the channel would block and
+ * drains the outbound queue whenever the channel is writable. Datagram buffers are direct and
+ * pooled, and peer addresses come pre-resolved from {@link Host}.
+ */
+public class UdpTransport implements Transport {
+    private static final int MAX_POOLED_BUFFERS = 1024;
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final SelectionKey key;
+    private final Queue<OutboundPacket> outbound = new ConcurrentLinkedQueue<>();
+    private final OutboundPacket.Pool pool = new OutboundPacket.Pool(MAX_POOLED_BUFFERS);
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private volatile Thread loopThread;
+    private volatile boolean running = true;
+    private boolean writeBlocked; // Socket send buffer was full, waiting for OP_WRITE
+
+    public UdpTransport(Host myHost) throws IOException {
+        this.channel = DatagramChannel.open();
+        this.channel.bind(new InetSocketAddress(myHost.getPort()));
+        this.channel.configureBlocking(false);
+        this.selector = Selector.open();
+        this.key = channel.register(selector, SelectionKey.OP_READ);
+    }
+
+    /**
+     * Starts the event loop; every received datagram is passed to the receiver on the loop thread.
+     */
+    @Override
+    public void start(Consumer<ByteBuffer> receiver) {
+        Thread thread = new Thread(() -> eventLoop(receiver), "network-loop");
+        loopThread = thread;
+        thread.start();
+    }
+
+    @Override
+    public OutboundPacket acquire() {
+        return pool.acquire();
+    }
+
+    @Override
+    public void send(OutboundPacket packet, Host host) {
+        packet.buffer.flip();
+        packet.target = host;
+        outbound.add(packet);
+        if (Thread.currentThread() != loopThread && wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    private void eventLoop(Consumer<ByteBuffer> receiver) {
+        while (running) {
+            try {
+                wakeupPending.set(false);
+                if (writeBlocked || outbound.isEmpty()) {
+                    selector.select();
+                } else {
+                    selector.selectNow();
+                }
+                selector.selectedKeys().clear();
+
+                receiveAll(receiver);
+                drainOutbound();
+            } catch (ClosedChannelException | ClosedSelectorException e) {
+                break;
+            } catch (IOException e) {
+                System.err.println("Network error: " + e.getMessage());
+            }
+        }
+    }
+
+    // Reads until the channel would block
+    private void receiveAll(Consumer<ByteBuffer> receiver) throws IOException {
+        while (true) {
+            receiveBuffer.clear();
+            if (channel.receive(receiveBuffer) == null) {
+                return;
+            }
+            receiveBuffer.flip();
+            receiver.accept(receiveBuffer);
+        }
+    }
+
+    // Sends queued packets until the queue is empty or the socket buffer is full
+    private void drainOutbound() {
+        OutboundPacket packet;
+        while ((packet = outbound.peek()) != null) {
+            try {
+                if (channel.send(packet.buffer, packet.target.getSocketAddress()) == 0) {
+                    if (!writeBlocked) {
+                        writeBlocked = true;
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    }
+                    return;
+                }
+            } catch (IOException e) {
+                System.err.println("Error sending message: " + e.getMessage());
+            }
+            outbound.poll();
+            packet.release();
+        }
+        if (writeBlocked) {
+            writeBlocked = false;
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            selector.close();
+            channel.close(); // Ensure socket is closed properly when done
+        } catch (IOException e) {
+            System.err.println("Error closing channel: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package cs451;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Interns proposal values into dense indices 0..size-1 so that {@link LatticeSet} can store
+ * sets over small indices.
+ *
+ * Lookups are lock-free: each slot of the open-addressing table packs the value and its index
+ * into one long, so a reader either sees a complete entry or an empty slot. Adding a value is
+ * synchronized; readers that miss fall back to it.
+ *
+ * The dictionary never forgets a value, so it is bounded: a process only ever sees the values of
+ * the run's proposals, at most maxDistinctElements of them, and a peer that sends more is refused
+ * rather than allowed to grow every process's memory.
+ */
+public final class ValueDictionary {
+    private static final long EMPTY = 0L;
+
+    private volatile AtomicLongArray table; // Slot = value << 32 | (index + 1)
+    private volatile int[] values; // Index -> value
+    private volatile int size; // Written under the monitor
+    private final int maxSize;
+
+    /**
+     * Creates an unbounded dictionary, for open-ended runs such as the continuous engine.
+     */
+    public ValueDictionary(int expectedSize) {
+        this(expectedSize, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Creates a dictionary that refuses to intern more than maxSize values.
+     */
+    public ValueDictionary(int expectedSize, int maxSize) {
+        int initial = Math.max(16, Math.min(expectedSize, maxSize));
+        int capacity = Integer.highestOneBit(initial * 2 - 1) << 1; // Load factor <= 0.5
+        this.table = new AtomicLongArray(capacity);
+        this.values = new int[initial];
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the index of the value, or -1 if it has never been interned.
+     */
+    public int indexOf(int value) {
+        return find(table, value);
+    }
+
+    /**
+     * Returns the index of the value, assigning the next free index if it is new.
+     *
+     * @throws IllegalArgumentException if the value is new and the dictionary is full
+     */
+    public int intern(int value) {
+        int index = find(table, value);
+        return index >= 0 ? index : internSlow(value);
+    }
+
+    public int valueAt(int index) {
+        return values[index];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private synchronized int internSlow(int value) {
+        int index = find(table, value);
+        if (index >= 0) {
+            return index;
+        }
+        if (size == maxSize) {
+            throw new IllegalArgumentException("More than " + maxSize + " distinct values, refusing " + value);
+        }
+        if ((size + 1) * 2 > table.length()) {
+            rehash(table.length() * 2);
+        }
+        index = size++;
+        if (index == values.length) {
+            values = Arrays.copyOf(values, (int) Math.min(values.length * 2L, maxSize));
+        }
+        values[index] = value; // Published by the volatile slot write below
+        insert(table, value, index);
+        return index;
+    }
+
+    private void rehash(int capacity) {
+        AtomicLongArray old = table;
+        AtomicLongArray resized = new AtomicLongArray(capacity);
+        for (int i = 0; i < old.length(); i++) {
+            long slot = old.get(i);
+            if (slot != EMPTY) {
+                insert(resized, (int) (slot >>> 32), (int) slot - 1);
+            }
+        }
+        table = resized; // Readers of the old table simply miss new values and take the slow path
+    }
+
+    private static void insert(AtomicLongArray table, int value, int index) {
+        int mask = table.length() - 1;
+        for (int i = hash(value) & mask; ; i = (i + 1) & mask) {
+            if (table.get(i) == EMPTY) {
+                table.set(i, ((long) value << 32) | ((index + 1) & 0xFFFFFFFFL));
+                return;
+            }
+        }
+    }
+
+    private static int find(AtomicLongArray table, int value) {
+        int mask = table.length() - 1;
+        for (int i = hash(value) & mask; ; i = (i + 1) & mask) {
+            long slot = table.get(i);
+            if (slot == EMPTY) {
+                return -1;
+            }
+            if ((int) (slot >>> 32) == value) {
+                return (int) slot - 1;
+            }
+        }
+    }
+
+    // Murmur3 finalizer, spreads consecutive values across the table
+    private static int hash(int value) {
+        int h = value;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
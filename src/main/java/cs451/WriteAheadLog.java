@@ -0,0 +1,293 @@
+package cs451;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of one shard's acceptor and proposer state, for the optional durability mode.
+ *
+ * Records are appended to a memory-mapped file of {@code capacity} bytes and only become durable
+ * on {@link #commit()}, which the shard calls once per batch of messages before releasing the
+ * replies that depend on them, so one fsync covers the whole batch. A record is
+ * [length:varint][crc32:4][payload] and is always followed by a 0 byte, which ends the replay;
+ * a torn record fails its checksum and ends it as well.
+ *
+ * Once the log is half full, a snapshot ({@link #beginSnapshot()}) writes the shard's whole live state in the same
+ * record format to a separate file, atomically replacing the previous snapshot, and empties the
+ * log. Recovery replays the snapshot and then the log, so it reads at most one snapshot and half
+ * a log. Replaying a record twice has no effect, which makes a crash between the snapshot and
+ * the emptying of the log harmless. The shard checks {@link #needsSnapshot()} after every message,
+ * not only once per batch, so a burst of records within one batch cannot overflow the log. Not
+ * thread-safe; only the shard thread uses it.
+ */
+public class WriteAheadLog implements Closeable {
+    private static final int MAGIC = 0x4C41574C;
+    private static final int HEADER_BYTES = 8; // Magic, shard count
+    private static final int RECORD_OVERHEAD = 5 + 4 + 1; // Length, checksum, end marker
+    private static final byte ACCEPT = 1; // [id][count][zig-zag first][deltas...]: values added to the set
+    private static final byte ROUND = 2; // [id][proposalNb]: round started
+
+    /**
+     * Receives the replayed records.
+     */
+    public interface Replayer {
+        void onAccept(int id, int[] values);
+
+        void onRound(int id, int proposalNb);
+    }
+
+    private final Path snapshotFile;
+    private final Path snapshotTemp;
+    private final FileChannel channel;
+    private final MappedByteBuffer log;
+    private final int shardCount;
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer snapshotBuffer; // Staging buffer of the snapshot being written, null otherwise
+    private int recordStart; // Position of the record being appended
+    private boolean dirty; // Records appended since the last commit
+
+    public WriteAheadLog(Path directory, String name, int shardCount, int capacity) throws IOException {
+        Files.createDirectories(directory);
+        this.snapshotFile = directory.resolve(name + ".snap");
+        this.snapshotTemp = directory.resolve(name + ".snap.tmp");
+        this.shardCount = shardCount;
+        this.channel = FileChannel.open(directory.resolve(name + ".wal"), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.log = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        if (log.getInt(0) == 0) {
+            log.putInt(0, MAGIC).putInt(4, shardCount);
+            log.put(HEADER_BYTES, (byte) 0);
+            log.force();
+        } else {
+            try {
+                checkHeader(log, "log");
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+        log.position(HEADER_BYTES);
+    }
+
+    /**
+     * Replays the snapshot, then the log, leaving the log positioned after its last valid record.
+     */
+    public void replay(Replayer replayer) throws IOException {
+        if (Files.exists(snapshotFile)) {
+            ByteBuffer snapshot = ByteBuffer.wrap(Files.readAllBytes(snapshotFile));
+            checkHeader(snapshot, "snapshot");
+            snapshot.position(HEADER_BYTES);
+            replayRecords(snapshot, replayer);
+        }
+        log.position(HEADER_BYTES);
+        replayRecords(log, replayer);
+        log.put(log.position(), (byte) 0); // Cuts off a torn record
+    }
+
+    /**
+     * Appends the values just added to an instance's set, sorted and distinct.
+     */
+    public void logAccept(int id, int[] values, int count) {
+        ByteBuffer out = begin(1 + 5 + 5 + 5 * count);
+        out.put(ACCEPT);
+        MessageCodec.putVarInt(out, id);
+        putValues(out, values, count);
+        end(out);
+    }
+
+    /**
+     * Appends the start of a round of an instance.
+     */
+    public void logRound(int id, int proposalNb) {
+        ByteBuffer out = begin(1 + 5 + 5);
+        out.put(ROUND);
+        MessageCodec.putVarInt(out, id);
+        MessageCodec.putVarInt(out, proposalNb);
+        end(out);
+    }
+
+    /**
+     * Returns true if records were appended since the last {@link #commit()}.
+     */
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Makes every appended record durable.
+     */
+    public void commit() {
+        if (dirty) {
+            log.force();
+            dirty = false;
+        }
+    }
+
+    /**
+     * Returns true once the log is half full and should be replaced by a snapshot.
+     */
+    public boolean needsSnapshot() {
+        return log.position() > log.capacity() / 2;
+    }
+
+    /**
+     * Starts a snapshot: until {@link #endSnapshot()}, {@link #logAccept} and {@link #logRound}
+     * write to the snapshot instead of the log. The caller must have committed the log.
+     */
+    public void beginSnapshot() {
+        snapshotBuffer = ByteBuffer.allocate(1 << 16);
+        snapshotBuffer.putInt(MAGIC).putInt(shardCount);
+    }
+
+    /**
+     * Durably replaces the previous snapshot with the records written since {@link #beginSnapshot()}
+     * and empties the log.
+     */
+    public void endSnapshot() throws IOException {
+        ByteBuffer snapshot = snapshotBuffer;
+        snapshotBuffer = null;
+        snapshot.put((byte) 0).flip();
+        try (FileChannel out = FileChannel.open(snapshotTemp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (snapshot.hasRemaining()) {
+                out.write(snapshot);
+            }
+            out.force(true);
+        }
+        Files.move(snapshotTemp, snapshotFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        log.position(HEADER_BYTES);
+        log.put(HEADER_BYTES, (byte) 0);
+        log.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        commit();
+        channel.close();
+    }
+
+    // Returns the buffer to write a record payload of at most maxPayload bytes into, after room for its length and checksum
+    private ByteBuffer begin(int maxPayload) {
+        ByteBuffer out = snapshotBuffer != null ? snapshotBuffer : log;
+        if (out == snapshotBuffer && out.remaining() < maxPayload + RECORD_OVERHEAD) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + maxPayload + RECORD_OVERHEAD));
+            out.flip();
+            snapshotBuffer = grown.put(out);
+            out = grown;
+        } else if (out == log && out.remaining() < maxPayload + RECORD_OVERHEAD) {
+            // A single message logged more than half the log, or the last snapshot failed
+            throw new IllegalStateException("Write-ahead log full, raise -Dcs451.wal.bytes");
+        }
+        recordStart = out.position();
+        out.position(recordStart + 5 + 4); // Length and checksum are filled in by end()
+        return out;
+    }
+
+    private void end(ByteBuffer out) {
+        int payloadStart = recordStart + 5 + 4;
+        int payloadEnd = out.position();
+        int length = payloadEnd - payloadStart;
+        ByteBuffer payload = out.duplicate();
+        payload.position(payloadStart).limit(payloadEnd);
+        crc.reset();
+        crc.update(payload.duplicate());
+        // begin() reserved 5 bytes for the length; the payload moves down if its varint is shorter
+        out.position(recordStart);
+        MessageCodec.putVarInt(out, length);
+        out.putInt((int) crc.getValue());
+        if (out.position() != payloadStart) {
+            out.put(payload);
+        } else {
+            out.position(payloadEnd);
+        }
+        out.put(out.position(), (byte) 0);
+        if (out == log) {
+            dirty = true;
+        }
+    }
+
+    private void replayRecords(ByteBuffer in, Replayer replayer) throws IOException {
+        while (true) {
+            int start = in.position();
+            ByteBuffer payload = nextRecord(in);
+            if (payload == null) {
+                in.position(start);
+                return;
+            }
+            byte type = payload.get();
+            int id = MessageCodec.getVarInt(payload);
+            if (type == ACCEPT) {
+                replayer.onAccept(id, getValues(payload));
+            } else if (type == ROUND) {
+                replayer.onRound(id, MessageCodec.getVarInt(payload));
+            } else {
+                throw new IOException("Unknown write-ahead log record " + type);
+            }
+        }
+    }
+
+    // Returns the payload of the record at the position and skips it, or null at the end marker or a torn record
+    private ByteBuffer nextRecord(ByteBuffer in) {
+        try {
+            int length = MessageCodec.getVarInt(in);
+            if (length <= 0 || length > in.remaining() - 4) {
+                return null;
+            }
+            int checksum = in.getInt();
+            ByteBuffer payload = in.duplicate();
+            payload.limit(in.position() + length);
+            crc.reset();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                return null;
+            }
+            in.position(in.position() + length);
+            return payload;
+        } catch (IOException | BufferUnderflowException e) {
+            return null;
+        }
+    }
+
+    private void checkHeader(ByteBuffer in, String what) throws IOException {
+        if (in.getInt(0) != MAGIC) {
+            throw new IOException("Not a write-ahead " + what + ": " + snapshotFile.getParent());
+        }
+        if (in.getInt(4) != shardCount) {
+            throw new IOException("Write-ahead " + what + " was written with " + in.getInt(4)
+                    + " shards, run with -Dcs451.shards=" + in.getInt(4));
+        }
+    }
+
+    private static void putValues(ByteBuffer out, int[] values, int count) {
+        MessageCodec.putVarInt(out, count);
+        for (int i = 0; i < count; i++) {
+            MessageCodec.putVarInt(out, i == 0 ? (values[0] << 1) ^ (values[0] >> 31) : values[i] - values[i - 1]);
+        }
+    }
+
+    private static int[] getValues(ByteBuffer in) throws IOException {
+        int count = MessageCodec.getVarInt(in);
+        if (count < 0 || count > in.remaining()) {
+            throw new IOException("Invalid write-ahead log record of " + count + " values");
+        }
+        int[] values = new int[count];
+        for (int i = 0; i < count; i++) {
+            if (i == 0) {
+                int zigZag = MessageCodec.getVarInt(in);
+                values[0] = (zigZag >>> 1) ^ -(zigZag & 1);
+            } else {
+                values[i] = values[i - 1] + MessageCodec.getVarInt(in);
+            }
+        }
+        return values;
+    }
+}
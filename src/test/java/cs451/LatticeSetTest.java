@@ -0,0 +1,121 @@
+package cs451;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LatticeSetTest {
+    @Test
+    void behavesLikeASortedSetAcrossBothForms() {
+        Random random = new Random(11);
+        ValueDictionary dictionary = new ValueDictionary(16);
+        for (int i = 0; i < 50_000; i++) {
+            dictionary.intern(i * 7); // Late indices, so small sets start as sorted arrays
+        }
+        for (int t = 0; t < 300; t++) {
+            LatticeSet a = new LatticeSet(dictionary);
+            LatticeSet b = new LatticeSet(dictionary);
+            TreeSet<Integer> modelA = new TreeSet<>();
+            TreeSet<Integer> modelB = new TreeSet<>();
+            int spread = t % 2 == 0 ? 50_000 : 300;
+            List<LatticeSet> snapshots = new ArrayList<>();
+            List<int[]> snapshotValues = new ArrayList<>();
+            for (int op = 0; op < 400; op++) {
+                int value = random.nextInt(spread) * 7;
+                switch (random.nextInt(6)) {
+                    case 0:
+                    case 1:
+                        assertEquals(modelA.add(value), a.add(value));
+                        break;
+                    case 2:
+                        assertEquals(modelB.add(value), b.add(value));
+                        break;
+                    case 3:
+                        assertEquals(!modelA.containsAll(modelB), a.join(b));
+                        modelA.addAll(modelB);
+                        break;
+                    case 4:
+                        snapshots.add(a.snapshot());
+                        snapshotValues.add(toArray(modelA));
+                        break;
+                    default:
+                        if (random.nextInt(20) == 0) {
+                            b.clear();
+                            modelB.clear();
+                        }
+                        assertEquals(modelA.contains(value), a.contains(value));
+                }
+                assertEquals(modelA.containsAll(modelB), a.containsAll(b));
+                assertEquals(modelB.containsAll(modelA), a.isSubsetOf(b));
+            }
+            assertArrayEquals(toArray(modelA), a.toSortedValues());
+            assertArrayEquals(toArray(modelB), b.toSortedValues());
+            assertEquals(modelA.size(), a.size());
+            assertEquals(modelA.isEmpty(), a.isEmpty());
+            TreeSet<Integer> except = new TreeSet<>(modelA);
+            except.removeAll(modelB);
+            assertArrayEquals(toArray(except), a.toSortedValuesExcept(b));
+            for (int i = 0; i < snapshots.size(); i++) {
+                assertArrayEquals(snapshotValues.get(i), snapshots.get(i).toSortedValues(), "Snapshot changed by later writes");
+            }
+            LatticeSet copy = a.copy();
+            copy.add(-1);
+            assertFalse(a.contains(-1));
+        }
+    }
+
+    @Test
+    void joinMixesSortedArrayAndBitsetSets() {
+        ValueDictionary dictionary = new ValueDictionary(16);
+        LatticeSet dense = new LatticeSet(dictionary);
+        for (int i = 0; i < 1000; i++) {
+            dense.add(i);
+        }
+        LatticeSet sparse = new LatticeSet(dictionary);
+        sparse.add(5_000_000); // Interned last, the highest index
+        sparse.add(3);
+
+        LatticeSet joined = sparse.copy();
+        assertTrue(joined.join(dense));
+        assertEquals(1001, joined.size());
+        assertTrue(joined.contains(5_000_000));
+        assertTrue(dense.join(sparse));
+        assertTrue(dense.containsAll(joined) && joined.containsAll(dense));
+        assertFalse(dense.join(sparse));
+    }
+
+    @Test
+    void snapshotIsImmutable() {
+        LatticeSet set = new LatticeSet(new ValueDictionary(16));
+        set.add(1);
+        LatticeSet snapshot = set.snapshot();
+        assertThrows(UnsupportedOperationException.class, () -> snapshot.add(2));
+        set.clear();
+        assertArrayEquals(new int[]{1}, snapshot.toSortedValues());
+        assertTrue(set.isEmpty());
+    }
+
+    @Test
+    void dictionaryRefusesValuesPastItsBound() {
+        ValueDictionary dictionary = new ValueDictionary(2, 3);
+        LatticeSet set = new LatticeSet(dictionary);
+        set.addAll(new int[]{10, 20, 30});
+        assertFalse(set.add(20), "Known values are still found");
+        assertThrows(IllegalArgumentException.class, () -> set.add(40));
+        assertEquals(3, dictionary.size());
+        assertEquals(-1, dictionary.indexOf(40));
+    }
+
+    private static int[] toArray(TreeSet<Integer> set) {
+        return set.stream().mapToInt(Integer::intValue).toArray();
+    }
+}
@@ -0,0 +1,453 @@
+package cs451;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+class MessageCodecTest {
+    @Test
+    void sparseSetIsDeltaEncoded() throws IOException {
+        assertRoundTrip(values(1, 1_000, 70_000, 5_000_000, -3), MessageCodec.SET_DELTAS);
+    }
+
+    @Test
+    void denseSetIsBitmapEncoded() throws IOException {
+        Random random = new Random(1);
+        Set<Integer> set = new TreeSet<>();
+        while (set.size() < 300) {
+            set.add(100 + random.nextInt(600));
+        }
+        assertRoundTrip(set, MessageCodec.SET_BITMAP);
+    }
+
+    @Test
+    void consecutiveRangesAreRunEncoded() throws IOException {
+        Set<Integer> set = new TreeSet<>();
+        for (int run = 0; run < 5; run++) {
+            for (int i = 0; i < 200; i++) {
+                set.add(run * 10_000 + i);
+            }
+        }
+        assertRoundTrip(set, MessageCodec.SET_RUNS);
+    }
+
+    @Test
+    void extremeValuesRoundTrip() throws IOException {
+        assertRoundTrip(values(Integer.MIN_VALUE, -1, 0, 1, Integer.MAX_VALUE), MessageCodec.SET_DELTAS);
+        assertRoundTrip(values(Integer.MIN_VALUE, Integer.MIN_VALUE + 1, Integer.MIN_VALUE + 2), -1);
+        assertRoundTrip(values(Integer.MAX_VALUE - 2, Integer.MAX_VALUE - 1, Integer.MAX_VALUE), -1);
+    }
+
+    @Test
+    void randomSetsRoundTrip() throws IOException {
+        Random random = new Random(7);
+        for (int t = 0; t < 2000; t++) {
+            Set<Integer> set = new HashSet<>();
+            int size = 1 + random.nextInt(300);
+            int base = random.nextInt(2000) - 1000;
+            int spread = t % 3 == 0 ? 100_000 : t % 3 == 1 ? size * 2 : size + 5;
+            while (set.size() < size) {
+                set.add(base + random.nextInt(spread));
+            }
+            assertRoundTrip(set, -1);
+        }
+    }
+
+    @Test
+    void everyMessageTypeRoundTrips() throws IOException {
+        ValueDictionary dictionary = new ValueDictionary(16);
+        LatticeSet base = new LatticeSet(dictionary);
+        base.addAll(new int[]{1, 2});
+        LatticeSet grown = base.copy();
+        grown.addAll(new int[]{3, 9});
+
+        Message delta = Message.createProposalDelta(2, 40, grown, 5, base, 3);
+        Message decoded = Message.fromBytes(delta.toBytes());
+        assertEquals(Message.MessageType.PROPOSAL_DELTA, decoded.getType());
+        assertEquals(3, decoded.getBaseProposalNb());
+        assertArrayEquals(new int[]{3, 9}, decoded.getProposalValues());
+
+        decoded = Message.fromBytes(Message.createNoAck(3, 300, 2, values(4, 8)).toBytes());
+        assertEquals(Message.MessageType.NACK, decoded.getType());
+        assertEquals(3, decoded.getSenderId());
+        assertEquals(300, decoded.getProposalId());
+        assertArrayEquals(new int[]{4, 8}, decoded.getProposalValues());
+
+        decoded = Message.fromBytes(Message.createAck(4, 1 << 20, 7).toBytes());
+        assertEquals(Message.MessageType.ACK, decoded.getType());
+        assertEquals(1 << 20, decoded.getProposalId());
+        assertEquals(7, decoded.getProposalNb());
+        assertNull(decoded.getProposalValues());
+
+        decoded = Message.fromBytes(Message.createDecidedPrefix(5, 1234).toBytes());
+        assertEquals(Message.MessageType.DECIDED_PREFIX, decoded.getType());
+        assertEquals(1234, decoded.getProposalId());
+    }
+
+    @Test
+    void toBytesIsExactlyTheDatagram() {
+        Message message = Message.createProposal(200, 70_000, values(1, 2, 3), 300);
+        ByteBuffer buffer = ByteBuffer.allocate(Transport.MAX_PACKET_SIZE);
+        MessageCodec.encode(message, buffer);
+        assertArrayEquals(Arrays.copyOf(buffer.array(), buffer.position()), message.toBytes());
+    }
+
+    @Test
+    void batchedDatagramDecodesEveryRecord() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Transport.MAX_PACKET_SIZE);
+        MessageCodec.putHeader(buffer, 6);
+        MessageCodec.encodeRecord(Message.createProposal(1, 10, values(5, 6), 2), buffer); // Relayed for process 1
+        MessageCodec.encodeRecord(Message.createAck(6, 11, 1), buffer);
+        MessageCodec.putHeartbeat(buffer, 6);
+        MessageCodec.encodeRecord(Message.createNoAck(6, 12, 3, values(7)), buffer);
+        buffer.flip();
+
+        assertEquals(6, MessageCodec.peekSenderId(buffer), "The datagram names its sender, not its first record's");
+        List<Message> out = new ArrayList<>();
+        MessageCodec.decodeAll(buffer, out);
+        assertEquals(3, out.size());
+        assertEquals(1, out.get(0).getSenderId());
+        assertArrayEquals(new int[]{5, 6}, out.get(0).getProposalValues());
+        assertEquals(Message.MessageType.ACK, out.get(1).getType());
+        assertArrayEquals(new int[]{7}, out.get(2).getProposalValues());
+    }
+
+    @Test
+    void rejectedRecordsAreSkipped() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        MessageCodec.putHeader(buffer, 2);
+        Set<Integer> dense = new TreeSet<>();
+        Set<Integer> runs = new TreeSet<>();
+        for (int i = 0; i < 500; i++) {
+            dense.add(i * 3);
+            runs.add(i);
+        }
+        MessageCodec.encodeRecord(Message.createProposal(2, 1, values(1, 50_000, 9_000_000), 1), buffer);
+        MessageCodec.encodeRecord(Message.createProposal(2, 2, dense, 1), buffer);
+        MessageCodec.encodeRecord(Message.createProposal(2, 3, runs, 1), buffer);
+        MessageCodec.encodeRecord(Message.createProposal(2, 4, values(8, 9), 1), buffer);
+        buffer.flip();
+
+        List<Message> out = new ArrayList<>();
+        MessageCodec.decodeAll(buffer, out, null, (type, senderId, proposalId, proposalNb) -> proposalId == 4);
+        assertEquals(1, out.size());
+        assertEquals(4, out.get(0).getProposalId());
+        assertArrayEquals(new int[]{8, 9}, out.get(0).getProposalValues());
+    }
+
+    @Test
+    void version3DatagramIsCreditedToItsFirstRecord() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        buffer.put(MessageCodec.RECORDS_VERSION);
+        MessageCodec.encodeRecord(Message.createProposal(3, 8, values(1, 4), 1), buffer);
+        buffer.flip();
+        assertEquals(3, MessageCodec.peekSenderId(buffer));
+        List<Message> out = new ArrayList<>();
+        MessageCodec.decodeAll(buffer, out);
+        assertArrayEquals(new int[]{1, 4}, out.get(0).getProposalValues());
+    }
+
+    @Test
+    void version2DatagramHasNoEncodingByte() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        buffer.put(MessageCodec.DELTA_VERSION);
+        buffer.put((byte) Message.MessageType.PROPOSAL.ordinal());
+        MessageCodec.putVarInt(buffer, 2); // Sender
+        MessageCodec.putVarInt(buffer, 9); // Instance
+        MessageCodec.putVarInt(buffer, 1); // Round
+        MessageCodec.putVarInt(buffer, 3); // Set size
+        MessageCodec.putVarInt(buffer, 5); // -3, zig-zag
+        MessageCodec.putVarInt(buffer, 4);
+        MessageCodec.putVarInt(buffer, 100);
+        buffer.flip();
+        Message message = Message.fromBytes(Arrays.copyOf(buffer.array(), buffer.limit()));
+        assertEquals(2, message.getSenderId());
+        assertArrayEquals(new int[]{-3, 1, 101}, message.getProposalValues());
+    }
+
+    @Test
+    void legacyEncodingIsDecoded() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(Message.MessageType.NACK.ordinal());
+            out.writeInt(3);
+            out.writeInt(17);
+            out.writeInt(2);
+            out.writeInt(3);
+            out.writeInt(9); // Unsorted and repeated, like the old HashSet serialization could not be
+            out.writeInt(-1);
+            out.writeInt(9);
+        }
+        Message message = Message.fromBytes(bytes.toByteArray());
+        assertEquals(Message.MessageType.NACK, message.getType());
+        assertEquals(3, message.getSenderId());
+        assertEquals(17, message.getProposalId());
+        assertArrayEquals(new int[]{-1, 9}, message.getProposalValues());
+        assertEquals(3, MessageCodec.peekSenderId(ByteBuffer.wrap(bytes.toByteArray())));
+    }
+
+    @Test
+    void fragmentsReassembleIntoTheRecord() throws IOException {
+        Set<Integer> set = new TreeSet<>();
+        Random random = new Random(3);
+        while (set.size() < 5000) {
+            set.add(random.nextInt(1 << 30));
+        }
+        Message message = Message.createNoAck(4, 77, 3, set);
+        byte[] record = new byte[MessageCodec.encodedSize(message)];
+        MessageCodec.encodeRecord(message, ByteBuffer.wrap(record));
+        int count = 7;
+
+        byte[] rebuilt = new byte[record.length];
+        boolean[] seen = new boolean[count];
+        MessageCodec.FragmentSink sink = new MessageCodec.FragmentSink() {
+            @Override
+            public void onFragment(int senderId, int seq, int proposalId, boolean nack, int index, int count,
+                                   int totalLength, ByteBuffer bytes, List<Message> out) {
+                assertEquals(4, senderId);
+                assertEquals(77, proposalId);
+                assertTrue(nack);
+                assertEquals(record.length, totalLength);
+                seen[index] = true;
+                bytes.get(rebuilt, index * MessageCodec.fragmentChunk(totalLength, count), bytes.remaining());
+            }
+
+            @Override
+            public void onFragmentRequest(int senderId, int seq, int[] indices, int count) {
+                fail("No request was sent");
+            }
+        };
+        for (int index = count - 1; index >= 0; index--) { // Out of order, one per datagram
+            ByteBuffer datagram = ByteBuffer.allocate(Transport.MAX_PACKET_SIZE);
+            MessageCodec.putHeader(datagram, 4);
+            MessageCodec.putFragment(datagram, 4, 0, 77, true, index, count, record);
+            assertEquals(MessageCodec.fragmentSize(4, 0, 77, index, count, record.length), datagram.position() - 2);
+            datagram.flip();
+            MessageCodec.decodeAll(datagram, new ArrayList<>(), sink);
+        }
+        for (boolean fragment : seen) {
+            assertTrue(fragment);
+        }
+        Message decoded = MessageCodec.decodeRecord(ByteBuffer.wrap(rebuilt));
+        assertArrayEquals(message.getProposalValues(), decoded.getProposalValues());
+    }
+
+    @Test
+    void fragmentRequestRoundTrips() throws IOException {
+        ByteBuffer datagram = ByteBuffer.allocate(64);
+        MessageCodec.putHeader(datagram, 2);
+        MessageCodec.putFragmentRequest(datagram, 2, 5, new int[]{0, 3, 4, 9}, 4);
+        datagram.flip();
+        int[][] requested = new int[1][];
+        MessageCodec.decodeAll(datagram, new ArrayList<>(), new MessageCodec.FragmentSink() {
+            @Override
+            public void onFragment(int senderId, int seq, int proposalId, boolean nack, int index, int count,
+                                   int totalLength, ByteBuffer bytes, List<Message> out) {
+                fail("No fragment was sent");
+            }
+
+            @Override
+            public void onFragmentRequest(int senderId, int seq, int[] indices, int count) {
+                assertEquals(5, seq);
+                requested[0] = Arrays.copyOf(indices, count);
+            }
+        });
+        assertArrayEquals(new int[]{0, 3, 4, 9}, requested[0]);
+    }
+
+    @Test
+    void truncatedDatagramsFailCleanly() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 14);
+        MessageCodec.putHeader(buffer, 3);
+        Set<Integer> dense = new TreeSet<>();
+        Set<Integer> runs = new TreeSet<>();
+        for (int i = 0; i < 100; i++) {
+            dense.add(i * 2);
+            runs.add(i < 50 ? i : i + 1000);
+        }
+        MessageCodec.encodeRecord(Message.createProposal(3, 1, values(-7, 300, 1 << 25), 2), buffer);
+        MessageCodec.encodeRecord(Message.createProposal(3, 2, dense, 2), buffer);
+        MessageCodec.encodeRecord(Message.createProposal(3, 3, runs, 2), buffer);
+        MessageCodec.putRelayAck(buffer, 3, 1, 4, 2, new int[]{2, 5}, 2);
+        MessageCodec.putFragmentRequest(buffer, 3, 1, new int[]{1, 2}, 2);
+        byte[] full = Arrays.copyOf(buffer.array(), buffer.position());
+
+        for (int length = 0; length < full.length; length++) {
+            ByteBuffer truncated = ByteBuffer.wrap(full, 0, length);
+            try {
+                List<Message> out = new ArrayList<>();
+                MessageCodec.decodeAll(truncated, out);
+                for (Message message : out) {
+                    message.getProposalValues(); // A set must be complete once its record was accepted
+                }
+            } catch (IOException expected) {
+                // Cut inside a record
+            } catch (RuntimeException e) {
+                throw new AssertionError("Datagram cut at " + length + " bytes failed with " + e, e);
+            }
+        }
+    }
+
+    @Test
+    void malformedDatagramsAreRejected() {
+        assertDecodeFails(new byte[0]);
+        assertDecodeFails(new byte[]{MessageCodec.VERSION});
+        assertDecodeFails(new byte[]{42, 1, 0});
+        assertDecodeFails(new byte[]{MessageCodec.VERSION, 1, 0x7F, 1, 1, 1, 0});
+
+        ByteBuffer oversized = header(1);
+        oversized.put((byte) Message.MessageType.PROPOSAL.ordinal());
+        MessageCodec.putVarInt(oversized, 1);
+        MessageCodec.putVarInt(oversized, 0);
+        MessageCodec.putVarInt(oversized, 1);
+        MessageCodec.putVarInt(oversized, Integer.MAX_VALUE); // Set size
+        oversized.put(MessageCodec.SET_RUNS);
+        assertDecodeFails(oversized);
+
+        ByteBuffer bitmap = header(1);
+        bitmap.put((byte) Message.MessageType.PROPOSAL.ordinal());
+        MessageCodec.putVarInt(bitmap, 1);
+        MessageCodec.putVarInt(bitmap, 0);
+        MessageCodec.putVarInt(bitmap, 1);
+        MessageCodec.putVarInt(bitmap, 4);
+        bitmap.put(MessageCodec.SET_BITMAP);
+        MessageCodec.putVarInt(bitmap, 0);
+        MessageCodec.putVarInt(bitmap, 1000); // Bitmap bytes beyond the datagram
+        bitmap.put((byte) 0x0F);
+        assertDecodeFails(bitmap);
+
+        ByteBuffer runs = header(1);
+        runs.put((byte) Message.MessageType.PROPOSAL.ordinal());
+        MessageCodec.putVarInt(runs, 1);
+        MessageCodec.putVarInt(runs, 0);
+        MessageCodec.putVarInt(runs, 1);
+        MessageCodec.putVarInt(runs, 3);
+        runs.put(MessageCodec.SET_RUNS);
+        MessageCodec.putVarInt(runs, 0);
+        MessageCodec.putVarInt(runs, 1); // One run
+        MessageCodec.putVarInt(runs, 9); // Of 10 values, more than the set size
+        assertDecodeFails(runs);
+
+        ByteBuffer repeated = header(1);
+        repeated.put((byte) Message.MessageType.PROPOSAL.ordinal());
+        MessageCodec.putVarInt(repeated, 1);
+        MessageCodec.putVarInt(repeated, 0);
+        MessageCodec.putVarInt(repeated, 1);
+        MessageCodec.putVarInt(repeated, 2);
+        repeated.put(MessageCodec.SET_DELTAS);
+        MessageCodec.putVarInt(repeated, 8);
+        MessageCodec.putVarInt(repeated, 0); // The same value twice
+        assertDecodeFails(repeated);
+
+        ByteBuffer wrapped = header(1);
+        wrapped.put((byte) Message.MessageType.PROPOSAL.ordinal());
+        MessageCodec.putVarInt(wrapped, 1);
+        MessageCodec.putVarInt(wrapped, 0);
+        MessageCodec.putVarInt(wrapped, 1);
+        MessageCodec.putVarInt(wrapped, 2);
+        wrapped.put(MessageCodec.SET_DELTAS);
+        MessageCodec.putVarInt(wrapped, 2 * 1000);
+        MessageCodec.putVarInt(wrapped, Integer.MAX_VALUE); // Past the largest int
+        assertDecodeFails(wrapped);
+
+        ByteBuffer acks = header(1);
+        acks.put(MessageCodec.CUMULATIVE_ACK);
+        MessageCodec.putVarInt(acks, 1);
+        MessageCodec.putVarInt(acks, 1_000_000); // More entries than bytes left
+        assertDecodeFails(acks);
+
+        ByteBuffer fragment = header(1);
+        fragment.put(MessageCodec.FRAGMENT);
+        MessageCodec.putVarInt(fragment, 1);
+        MessageCodec.putVarInt(fragment, 0);
+        MessageCodec.putVarInt(fragment, 0);
+        fragment.put((byte) 0);
+        MessageCodec.putVarInt(fragment, 3); // Index past the count
+        MessageCodec.putVarInt(fragment, 3);
+        MessageCodec.putVarInt(fragment, 30);
+        fragment.put(new byte[10]);
+        assertDecodeFails(fragment);
+
+        ByteBuffer overlong = header(1);
+        overlong.put((byte) Message.MessageType.ACK.ordinal());
+        overlong.put(new byte[]{(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 1}); // Six-byte varint
+        assertDecodeFails(overlong);
+    }
+
+    private static void assertRoundTrip(Set<Integer> set, int expectedEncoding) throws IOException {
+        Message message = Message.createProposal(9, 123, set, 4);
+        byte[] bytes = message.toBytes();
+        if (expectedEncoding >= 0) {
+            assertEquals(expectedEncoding, encodingOf(bytes));
+        }
+        Message decoded = Message.fromBytes(bytes);
+        assertEquals(Message.MessageType.PROPOSAL, decoded.getType());
+        assertEquals(9, decoded.getSenderId());
+        assertEquals(123, decoded.getProposalId());
+        assertEquals(4, decoded.getProposalNb());
+        int[] expected = set.stream().mapToInt(Integer::intValue).sorted().toArray();
+        assertArrayEquals(expected, decoded.getProposalValues());
+
+        LatticeSet target = new LatticeSet(new ValueDictionary(16));
+        decoded.readProposalSet(target);
+        assertArrayEquals(expected, target.toSortedValues());
+    }
+
+    // Encoding byte of a single-record datagram, after the header and the record's fields
+    private static int encodingOf(byte[] datagram) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(datagram);
+        in.get();
+        MessageCodec.getVarInt(in);
+        in.get();
+        for (int field = 0; field < 4; field++) { // Sender, instance, round, set size
+            MessageCodec.getVarInt(in);
+        }
+        return in.get();
+    }
+
+    private static ByteBuffer header(int senderId) {
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        MessageCodec.putHeader(buffer, senderId);
+        return buffer;
+    }
+
+    private static void assertDecodeFails(ByteBuffer buffer) {
+        buffer.flip();
+        assertDecodeFails(Arrays.copyOf(buffer.array(), buffer.limit()));
+    }
+
+    private static void assertDecodeFails(byte[] datagram) {
+        assertThrows(IOException.class, () -> {
+            List<Message> out = new ArrayList<>();
+            MessageCodec.decodeAll(ByteBuffer.wrap(datagram), out);
+            for (Message message : out) {
+                message.getProposalValues();
+            }
+        });
+    }
+
+    private static Set<Integer> values(int... values) {
+        Set<Integer> set = new TreeSet<>();
+        for (int value : values) {
+            set.add(value);
+        }
+        return set;
+    }
+}
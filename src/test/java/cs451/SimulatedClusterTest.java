@@ -0,0 +1,45 @@
+package cs451;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SimulatedClusterTest {
+    private static final int PROCESSES = 7;
+    private static final long TIMEOUT_NANOS = 60_000_000_000L;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void decisionsAreValidUnderLossAndReordering() throws Exception {
+        LinkProfile lossy = new LinkProfile(0.1, 200, 500, LinkProfile.Distribution.EXPONENTIAL, 0.3, 2000, 0, 50_000);
+        for (long seed = 1; seed <= 3; seed++) {
+            Path run = dir.resolve("seed" + seed);
+            ClusterBenchmark benchmark = new ClusterBenchmark(run, PROCESSES, 300, 20, 60);
+            benchmark.generate(seed);
+            List<String> configs = new ArrayList<>();
+            for (int i = 1; i <= PROCESSES; i++) {
+                configs.add(run.resolve(i + ".config").toString());
+            }
+
+            SimulatedNetwork network = new SimulatedNetwork(seed, lossy, Constants.SIM_RECEIVE_BUFFER_BYTES);
+            SimulatedCluster cluster = new SimulatedCluster(network, run.toString(), configs);
+            long deadline = System.nanoTime() + TIMEOUT_NANOS;
+            cluster.start();
+            while (!cluster.isDone() && System.nanoTime() - deadline < 0) {
+                Thread.sleep(10);
+            }
+            boolean done = cluster.isDone();
+            cluster.shutdown(); // Writes out the buffered decisions
+
+            assertTrue(done, "Seed " + seed + ": the cluster did not decide every instance in time");
+            assertTrue(benchmark.verify(), "Seed " + seed + ": " + benchmark.getErrors());
+        }
+    }
+}
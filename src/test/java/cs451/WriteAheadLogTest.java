@@ -0,0 +1,224 @@
+package cs451;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WriteAheadLogTest {
+    private static final int CAPACITY = 1 << 20;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void replaysCommittedRecords() throws IOException {
+        try (WriteAheadLog wal = open(2)) {
+            wal.logAccept(4, new int[]{-5, 3, 1_000_000}, 3);
+            wal.logRound(4, 2);
+            wal.logAccept(6, new int[]{Integer.MIN_VALUE, Integer.MAX_VALUE}, 2);
+            assertTrue(wal.isDirty());
+            wal.commit();
+            assertFalse(wal.isDirty());
+        }
+        assertEquals(List.of("accept 4 [-5, 3, 1000000]", "round 4 2", "accept 6 [-2147483648, 2147483647]"), replay(2));
+    }
+
+    @Test
+    void recordsOfEveryLengthSurviveTheVarIntShift() throws IOException {
+        // end() reserves 5 bytes for the length and moves the payload down to its actual varint size
+        int[] counts = {0, 1, 40, 120, 126, 127, 128, 200, 4000, 16_000, 16_400, 40_000};
+        try (WriteAheadLog wal = open(1)) {
+            for (int count : counts) {
+                wal.logAccept(count, values(count), count);
+            }
+            wal.commit();
+        }
+        List<String> expected = new ArrayList<>();
+        for (int count : counts) {
+            expected.add("accept " + count + " " + Arrays.toString(values(count)));
+        }
+        assertEquals(expected, replay(1));
+    }
+
+    @Test
+    void tornLastRecordEndsTheReplay() throws IOException {
+        try (WriteAheadLog wal = open(1)) {
+            wal.logRound(1, 1);
+            wal.logAccept(1, values(300), 300);
+            wal.commit();
+        }
+        List<int[]> records = records();
+        int[] last = records.get(1);
+        zero(last[0] + last[1] / 2, last[1] - last[1] / 2); // Only the first half of the record reached the disk
+        assertEquals(List.of("round 1 1"), replay(1));
+
+        try (WriteAheadLog wal = open(1)) {
+            wal.replay(ignoring());
+            wal.logRound(2, 3); // Appended where the torn record started
+            wal.commit();
+        }
+        assertEquals(List.of("round 1 1", "round 2 3"), replay(1));
+    }
+
+    @Test
+    void checksumMismatchEndsTheReplay() throws IOException {
+        try (WriteAheadLog wal = open(1)) {
+            wal.logRound(1, 1);
+            wal.logAccept(1, new int[]{7, 8, 9}, 3);
+            wal.logRound(1, 2);
+            wal.commit();
+        }
+        int[] middle = records().get(1);
+        flip(middle[0] + middle[1] - 1); // Last payload byte, the length still matches
+        assertEquals(List.of("round 1 1"), replay(1));
+    }
+
+    @Test
+    void replaysSnapshotThenLog() throws IOException {
+        try (WriteAheadLog wal = open(1)) {
+            wal.logAccept(1, new int[]{1}, 1);
+            wal.logRound(1, 1);
+            wal.commit();
+            wal.beginSnapshot();
+            wal.logAccept(1, new int[]{1, 2}, 2);
+            wal.logRound(1, 4);
+            wal.endSnapshot();
+            wal.logAccept(1, new int[]{3}, 1);
+            wal.commit();
+        }
+        assertEquals(List.of("accept 1 [1, 2]", "round 1 4", "accept 1 [3]"), replay(1));
+    }
+
+    @Test
+    void snapshotEmptiesTheLog() throws IOException {
+        try (WriteAheadLog wal = open(1)) {
+            while (!wal.needsSnapshot()) {
+                wal.logAccept(1, values(1000), 1000);
+            }
+            wal.commit();
+            wal.beginSnapshot();
+            wal.logRound(1, 1);
+            wal.endSnapshot();
+            assertFalse(wal.needsSnapshot());
+        }
+        assertEquals(List.of("round 1 1"), replay(1));
+    }
+
+    @Test
+    void fullLogRefusesRecords() throws IOException {
+        try (WriteAheadLog wal = open(1)) {
+            assertThrows(IllegalStateException.class, () -> {
+                while (true) {
+                    wal.logAccept(1, values(1000), 1000);
+                }
+            });
+        }
+    }
+
+    @Test
+    void shardCountMismatchIsAnError() throws IOException {
+        try (WriteAheadLog wal = open(2)) {
+            wal.logRound(1, 1);
+            wal.commit();
+        }
+        IOException e = assertThrows(IOException.class, () -> open(3));
+        assertTrue(e.getMessage().contains("-Dcs451.shards=2"), e.getMessage());
+
+        try (WriteAheadLog wal = open(2)) {
+            wal.beginSnapshot();
+            wal.logRound(1, 1);
+            wal.endSnapshot();
+        }
+        Files.delete(dir.resolve("s.wal")); // A fresh log, but the snapshot of the old run is still there
+        try (WriteAheadLog wal = open(3)) {
+            assertThrows(IOException.class, () -> wal.replay(ignoring()));
+        }
+    }
+
+    private WriteAheadLog open(int shardCount) throws IOException {
+        return new WriteAheadLog(dir, "s", shardCount, CAPACITY);
+    }
+
+    private List<String> replay(int shardCount) throws IOException {
+        List<String> replayed = new ArrayList<>();
+        try (WriteAheadLog wal = open(shardCount)) {
+            wal.replay(new WriteAheadLog.Replayer() {
+                @Override
+                public void onAccept(int id, int[] values) {
+                    replayed.add("accept " + id + " " + Arrays.toString(values));
+                }
+
+                @Override
+                public void onRound(int id, int proposalNb) {
+                    replayed.add("round " + id + " " + proposalNb);
+                }
+            });
+        }
+        return replayed;
+    }
+
+    private static WriteAheadLog.Replayer ignoring() {
+        return new WriteAheadLog.Replayer() {
+            @Override
+            public void onAccept(int id, int[] values) {
+            }
+
+            @Override
+            public void onRound(int id, int proposalNb) {
+            }
+        };
+    }
+
+    // Start and length of each record in the log file, up to the end marker
+    private List<int[]> records() throws IOException {
+        ByteBuffer log = ByteBuffer.wrap(Files.readAllBytes(dir.resolve("s.wal")));
+        log.position(8);
+        List<int[]> records = new ArrayList<>();
+        while (true) {
+            int start = log.position();
+            int length = MessageCodec.getVarInt(log);
+            if (length == 0) {
+                return records;
+            }
+            log.position(log.position() + 4 + length);
+            records.add(new int[]{start, log.position() - start});
+        }
+    }
+
+    private void zero(int position, int length) throws IOException {
+        write(position, ByteBuffer.allocate(length));
+    }
+
+    private void flip(int position) throws IOException {
+        byte value = Files.readAllBytes(dir.resolve("s.wal"))[position];
+        write(position, ByteBuffer.wrap(new byte[]{(byte) ~value}));
+    }
+
+    private void write(int position, ByteBuffer bytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(dir.resolve("s.wal"), StandardOpenOption.WRITE)) {
+            channel.write(bytes, position);
+        }
+    }
+
+    private static int[] values(int count) {
+        int[] values = new int[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = i * 1000 - 50;
+        }
+        return values;
+    }
+}